@@ -0,0 +1,681 @@
+/*
+ * Copyright 2017 Javier Lancha Vázquez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.jlantxa.neural;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A BulkScorer runs a network over every row of a large input file and writes the outputs, in input order,
+ * to an output file. Rows are read in chunks through NIO channels and every chunk is split across all
+ * worker threads, each with its own NeuralNetwork instance sharing the connection matrices.
+ * The reading thread only finds the line boundaries of a CSV chunk; the values are parsed by the workers.
+ * Chunks are pipelined, so the next chunk is read and the previous one written while the current one is
+ * scored. Memory use is bounded by the chunk size, independently of the size of the files.
+ *
+ * Two file formats are supported:
+ * CSV, one row per line with comma separated values, and
+ * BINARY, a header (number of rows as a long, number of columns as an int) followed by the rows
+ * as big-endian doubles.
+ */
+public class BulkScorer implements Closeable
+{
+    public enum Format {
+        CSV,
+        BINARY
+    }
+
+    private static final int IO_BUFFER_SIZE = 1 << 20;
+    private static final int BINARY_HEADER_SIZE = 12;
+
+    /**
+     * Largest mantissa and powers of ten that are exact doubles, for the fast path of parseValue()
+     */
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final NeuralNetwork[] mNetworks;
+    private final double[][] mThreadInputs;
+    private final ExecutorService mExecutor;
+    private final int mChunkRows;
+    private final int mInputSize;
+    private final int mOutputSize;
+
+    private final ArrayList<Callable<Void>> mTasks = new ArrayList<>();
+    private Chunk mChunk;
+
+    /**
+     * Create a scorer using all available processors
+     * @param networkDescriptor network to run
+     * @param chunkRows number of rows per chunk
+     */
+    public BulkScorer(NetworkDescriptor networkDescriptor, int chunkRows) {
+        this(networkDescriptor, chunkRows, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a scorer
+     * @param networkDescriptor network to run
+     * @param chunkRows number of rows per chunk
+     * @param threads number of worker threads
+     */
+    public BulkScorer(NetworkDescriptor networkDescriptor, int chunkRows, int threads) {
+        mChunkRows = Math.max(chunkRows, 1);
+        mNetworks = new NeuralNetwork[Math.max(threads, 1)];
+        for (int t = 0; t < mNetworks.length; t++) {
+            mNetworks[t] = new NeuralNetwork(networkDescriptor);
+        }
+        mInputSize = mNetworks[0].getInputSize();
+        mOutputSize = mNetworks[0].getOutputSize();
+        mThreadInputs = new double[mNetworks.length][mInputSize];
+        mExecutor = Executors.newFixedThreadPool(mNetworks.length);
+
+        for (int t = 0; t < mNetworks.length; t++) {
+            final int thread = t;
+            mTasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    scoreRows(thread);
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Score every row of an input file
+     * @param input input file
+     * @param inputFormat format of the input file
+     * @param output output file, overwritten if it exists
+     * @param outputFormat format of the output file
+     * @return report with the number of rows and the throughput
+     * @throws IOException if a file cannot be read or written, or a row does not match the network input size
+     */
+    public Report score(File input, Format inputFormat, File output, Format outputFormat) throws IOException {
+        long start = System.nanoTime();
+        long rows = 0;
+
+        try (RowReader reader = inputFormat == Format.CSV ? new CsvReader(input) : new BinaryReader(input);
+             RowWriter writer = outputFormat == Format.CSV ? new CsvWriter(output) : new BinaryWriter(output)) {
+            // One chunk is scored while the next one is read and the previous one is written
+            Chunk[] chunks = { reader.newChunk(), reader.newChunk(), reader.newChunk() };
+            Chunk scored = chunks[0];
+            Chunk written = null;
+            reader.read(scored);
+
+            for (int c = 1; scored.rows > 0; c++) {
+                List<Future<Void>> futures = submitChunk(scored);
+                Chunk next = chunks[c % chunks.length];
+
+                IOException failure = null;
+                try {
+                    if (written != null) {
+                        writer.write(written.outputs, written.rows);
+                    }
+                    reader.read(next);
+                } catch (IOException e) {
+                    failure = e;
+                }
+
+                // Scoring errors belong to earlier rows, so they are reported first
+                awaitChunk(futures);
+                if (failure != null) {
+                    throw failure;
+                }
+
+                rows += scored.rows;
+                written = scored;
+                scored = next;
+            }
+
+            if (written != null) {
+                writer.write(written.outputs, written.rows);
+            }
+            writer.finish(rows);
+        }
+
+        return new Report(rows, System.nanoTime() - start);
+    }
+
+    /**
+     * Start scoring a chunk on all worker threads
+     */
+    private List<Future<Void>> submitChunk(Chunk chunk) {
+        mChunk = chunk;
+        List<Future<Void>> futures = new ArrayList<>(mTasks.size());
+        for (Callable<Void> task : mTasks) {
+            futures.add(mExecutor.submit(task));
+        }
+        return futures;
+    }
+
+    /**
+     * Wait for all worker threads to finish scoring a chunk
+     */
+    private void awaitChunk(List<Future<Void>> futures) throws IOException {
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while scoring", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Scoring failed", e.getCause());
+        }
+    }
+
+    /**
+     * Score the share of the current chunk belonging to a worker thread
+     */
+    private void scoreRows(int thread) throws IOException {
+        Chunk chunk = mChunk;
+        int threads = mNetworks.length;
+        int from = (int) ((long) chunk.rows * thread / threads);
+        int to = (int) ((long) chunk.rows * (thread + 1) / threads);
+
+        NeuralNetwork network = mNetworks[thread];
+        double[] input = mThreadInputs[thread];
+        for (int row = from; row < to; row++) {
+            chunk.decode(row, input);
+            double[] output = network.execute(input);
+            System.arraycopy(output, 0, chunk.outputs, row * mOutputSize, mOutputSize);
+        }
+    }
+
+    /**
+     * Stop the worker threads
+     */
+    @Override
+    public void close() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Result of a bulk scoring run
+     */
+    public static class Report
+    {
+        private final long rows;
+        private final long nanos;
+
+        Report(long rows, long nanos) {
+            this.rows = rows;
+            this.nanos = nanos;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public double getRowsPerSecond() {
+            return nanos > 0 ? rows / (nanos / 1e9) : 0.0;
+        }
+
+        @Override
+        public String toString() {
+            return "Scored " + rows + " rows in " + (nanos / 1e6) + " ms (" + getRowsPerSecond() + " rows per second)";
+        }
+    }
+
+    /**
+     * Up to chunkRows input rows as read from the file, and their outputs
+     */
+    private abstract class Chunk
+    {
+        final double[] outputs = new double[mChunkRows * mOutputSize];
+        int rows;
+
+        /**
+         * Decode a row into an input vector. Called concurrently for different rows.
+         */
+        abstract void decode(int row, double[] input) throws IOException;
+    }
+
+    private interface RowReader extends Closeable
+    {
+        Chunk newChunk();
+
+        /**
+         * Read up to chunkRows rows into a chunk
+         * @return number of rows read, 0 at the end of the file
+         */
+        int read(Chunk chunk) throws IOException;
+    }
+
+    private interface RowWriter extends Closeable
+    {
+        void write(double[] rows, int count) throws IOException;
+
+        void finish(long totalRows) throws IOException;
+    }
+
+    private class BinaryChunk extends Chunk
+    {
+        final double[] values = new double[mChunkRows * mInputSize];
+
+        @Override
+        void decode(int row, double[] input) {
+            System.arraycopy(values, row * mInputSize, input, 0, mInputSize);
+        }
+    }
+
+    private class BinaryReader implements RowReader
+    {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_SIZE);
+        private long remainingRows;
+
+        BinaryReader(File file) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+            ByteBuffer header = ByteBuffer.allocate(BINARY_HEADER_SIZE);
+            fill(header);
+            if (header.remaining() < BINARY_HEADER_SIZE) {
+                throw new IOException(file + " has no binary matrix header");
+            }
+            remainingRows = header.getLong();
+            int columns = header.getInt();
+            if (columns != mInputSize) {
+                throw new IOException(file + " has " + columns + " columns, the network expects " + mInputSize);
+            }
+
+            buffer.limit(0);
+        }
+
+        private void fill(ByteBuffer target) throws IOException {
+            while (target.hasRemaining() && channel.read(target) >= 0) {
+                // Keep reading
+            }
+            target.flip();
+        }
+
+        @Override
+        public Chunk newChunk() {
+            return new BinaryChunk();
+        }
+
+        @Override
+        public int read(Chunk chunk) throws IOException {
+            double[] rows = ((BinaryChunk) chunk).values;
+            int count = (int) Math.min(mChunkRows, remainingRows);
+            int values = count * mInputSize;
+            for (int i = 0; i < values; i++) {
+                if (buffer.remaining() < 8) {
+                    buffer.compact();
+                    fill(buffer);
+                    if (buffer.remaining() < 8) {
+                        throw new IOException("Unexpected end of binary matrix");
+                    }
+                }
+                rows[i] = buffer.getDouble();
+            }
+
+            remainingRows -= count;
+            chunk.rows = count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * The text of up to chunkRows non-blank lines, without the line breaks
+     */
+    private class CsvChunk extends Chunk
+    {
+        byte[] text = new byte[IO_BUFFER_SIZE];
+        int length;
+        final int[] starts = new int[mChunkRows];
+        final int[] ends = new int[mChunkRows];
+        final long[] lines = new long[mChunkRows];
+
+        void append(byte[] bytes, int from, int count) {
+            if (length + count > text.length) {
+                text = Arrays.copyOf(text, Math.max(2 * text.length, length + count));
+            }
+            System.arraycopy(bytes, from, text, length, count);
+            length += count;
+        }
+
+        /**
+         * Close the line starting at start as a row, or drop it if it is blank
+         * @return start of the next line
+         */
+        int endLine(int start, long line) {
+            for (int i = start; i < length; i++) {
+                if (!isBlank(text[i])) {
+                    starts[rows] = start;
+                    ends[rows] = length;
+                    lines[rows] = line;
+                    rows++;
+                    return length;
+                }
+            }
+            length = start;
+            return start;
+        }
+
+        @Override
+        void decode(int row, double[] input) throws IOException {
+            long line = lines[row];
+            int end = ends[row];
+            int columns = 0;
+            for (int i = starts[row]; i <= end; ) {
+                int comma = i;
+                while (comma < end && text[comma] != ',') {
+                    comma++;
+                }
+
+                int from = i;
+                int to = comma;
+                while (from < to && isBlank(text[from])) {
+                    from++;
+                }
+                while (to > from && isBlank(text[to - 1])) {
+                    to--;
+                }
+
+                if (from < to) {
+                    if (columns < mInputSize) {
+                        input[columns] = parseValue(text, from, to, line);
+                    }
+                    columns++;
+                } else if (comma < end) {
+                    throw new IOException("Empty value in line " + line);
+                }
+                i = comma + 1;
+            }
+
+            if (columns != mInputSize) {
+                throw new IOException("Line " + line + " has " + columns +
+                        " values, the network expects " + mInputSize);
+            }
+        }
+    }
+
+    private class CsvReader implements RowReader
+    {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_SIZE);
+        private final byte[] bytes = buffer.array();
+        private int position = 0;
+        private int limit = 0;
+        private boolean eof = false;
+        private long line = 0;
+
+        CsvReader(File file) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+
+        @Override
+        public Chunk newChunk() {
+            return new CsvChunk();
+        }
+
+        /**
+         * Copy the next lines into a chunk. Only the line breaks are searched here, the values are
+         * parsed by the worker threads.
+         */
+        @Override
+        public int read(Chunk target) throws IOException {
+            CsvChunk chunk = (CsvChunk) target;
+            chunk.rows = 0;
+            chunk.length = 0;
+            int lineStart = 0;
+
+            while (chunk.rows < mChunkRows) {
+                if (position == limit) {
+                    if (eof) {
+                        // Last line without a line break
+                        if (chunk.length > lineStart) {
+                            line++;
+                            chunk.endLine(lineStart, line);
+                        }
+                        break;
+                    }
+                    buffer.clear();
+                    eof = channel.read(buffer) < 0;
+                    position = 0;
+                    limit = buffer.position();
+                    continue;
+                }
+
+                int end = position;
+                while (end < limit && bytes[end] != '\n') {
+                    end++;
+                }
+                chunk.append(bytes, position, end - position);
+                position = end;
+
+                if (end < limit) {
+                    position++;
+                    line++;
+                    lineStart = chunk.endLine(lineStart, line);
+                }
+            }
+            return chunk.rows;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    /**
+     * Parse a decimal value without allocating. Values with at most 15-16 significant digits and a small
+     * exponent, the common case, are converted with a single exact multiplication or division, which rounds
+     * correctly. Anything else falls back to Double.parseDouble.
+     */
+    private static double parseValue(byte[] text, int from, int to, long line) throws IOException {
+        int i = from;
+        boolean negative = text[i] == '-';
+        if (negative || text[i] == '+') {
+            i++;
+        }
+
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        boolean exact = true;
+        boolean fraction = false;
+        for (; i < to; i++) {
+            byte b = text[i];
+            if (b == '.' && !fraction) {
+                fraction = true;
+                continue;
+            }
+            if (b < '0' || b > '9') {
+                break;
+            }
+
+            int digit = b - '0';
+            if (mantissa > (MAX_EXACT_MANTISSA - digit) / 10) {
+                exact = false;
+            } else {
+                mantissa = mantissa * 10 + digit;
+                if (fraction) {
+                    exponent--;
+                }
+            }
+            digits++;
+        }
+
+        if (i < to && (text[i] == 'e' || text[i] == 'E') && digits > 0) {
+            i++;
+            boolean negativeExponent = i < to && text[i] == '-';
+            if (i < to && (text[i] == '-' || text[i] == '+')) {
+                i++;
+            }
+            int value = 0;
+            int exponentDigits = 0;
+            for (; i < to && text[i] >= '0' && text[i] <= '9'; i++) {
+                value = Math.min(value * 10 + (text[i] - '0'), 10000);
+                exponentDigits++;
+            }
+            if (exponentDigits == 0) {
+                exact = false;
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+
+        if (exact && digits > 0 && i == to && exponent >= -22 && exponent <= 22) {
+            double value = exponent < 0
+                    ? mantissa / POWERS_OF_TEN[-exponent]
+                    : mantissa * POWERS_OF_TEN[exponent];
+            return negative ? -value : value;
+        }
+
+        String field = new String(text, from, to - from, StandardCharsets.US_ASCII);
+        try {
+            return Double.parseDouble(field);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid number in line " + line + ": " + field);
+        }
+    }
+
+    private class BinaryWriter implements RowWriter
+    {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_SIZE);
+
+        BinaryWriter(File file) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+            // The number of rows is written by finish()
+            buffer.putLong(0);
+            buffer.putInt(mOutputSize);
+        }
+
+        @Override
+        public void write(double[] rows, int count) throws IOException {
+            int values = count * mOutputSize;
+            for (int i = 0; i < values; i++) {
+                if (buffer.remaining() < 8) {
+                    flush();
+                }
+                buffer.putDouble(rows[i]);
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void finish(long totalRows) throws IOException {
+            flush();
+            ByteBuffer header = ByteBuffer.allocate(8);
+            header.putLong(totalRows).flip();
+            channel.write(header, 0);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private class CsvWriter implements RowWriter
+    {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_SIZE);
+        private final StringBuilder line = new StringBuilder();
+
+        CsvWriter(File file) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        @Override
+        public void write(double[] rows, int count) throws IOException {
+            for (int row = 0; row < count; row++) {
+                line.setLength(0);
+                for (int n = 0; n < mOutputSize; n++) {
+                    if (n > 0) {
+                        line.append(',');
+                    }
+                    line.append(rows[row * mOutputSize + n]);
+                }
+                line.append('\n');
+
+                byte[] bytes = line.toString().getBytes(StandardCharsets.US_ASCII);
+                if (buffer.remaining() < bytes.length) {
+                    flush();
+                }
+                buffer.put(bytes);
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void finish(long totalRows) throws IOException {
+            flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2017 Javier Lancha Vázquez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.jlantxa.neural;
+
+import org.jlantxa.neural.behaviour.LeakyReluFunction;
+import org.jlantxa.neural.behaviour.SoftmaxFunction;
+
+import java.util.ArrayList;
+
+/**
+ * A CompiledNetwork is an immutable, specialized form of a network topology intended for small networks,
+ * where list lookups and interface dispatch cost more than the arithmetic itself.
+ * Compilation snapshots the weights into one flat array, resolves every activation function
+ * to an inlined code path and preallocates all working buffers, so execute() runs without
+ * collections, virtual calls or allocations. Rows of inputs that are exactly 0 are skipped.
+ * Changes to the descriptor after compilation are not reflected by the compiled network.
+ */
+public final class CompiledNetwork implements InferenceEngine
+{
+    private static final int IDENTITY = 0;
+    private static final int LOGISTIC = 1;
+    private static final int RELU = 2;
+    private static final int LEAKY_RELU = 3;
+    private static final int TANH = 4;
+    private static final int SOFTMAX = 5;
+
+    private static final SoftmaxFunction SOFTMAX_FUNCTION = new SoftmaxFunction();
+
+    private final int mNumLayers;
+    private final int[] mSizes;
+    private final int[] mActivations;
+
+    /**
+     * All biases, layer after layer. Biases of layer l start at mBiasOffsets[l].
+     */
+    private final double[] mBiases;
+    private final int[] mBiasOffsets;
+
+    /**
+     * All connection matrices flattened row-major, one after another.
+     * The matrix before layer k (index h = k-1) starts at mWeightOffsets[h].
+     */
+    private final double[] mWeights;
+    private final int[] mWeightOffsets;
+
+    /**
+     * Outputs of all layers, layer after layer, at the same offsets as the biases
+     */
+    private final double[] mOutputs;
+    private final double[] mResult;
+
+    private CompiledNetwork(NetworkDescriptor networkDescriptor) {
+        ArrayList<NetworkDescriptor.LayerDescriptor> layers = networkDescriptor.getLayerDescriptors();
+        ArrayList<double[][]> connections = networkDescriptor.getConnectionDescriptors();
+
+        mNumLayers = layers.size();
+        mSizes = new int[mNumLayers];
+        mActivations = new int[mNumLayers];
+        mBiasOffsets = new int[mNumLayers];
+        mWeightOffsets = new int[Math.max(mNumLayers - 1, 0)];
+
+        int biasCount = 0;
+        int weightCount = 0;
+        for (int l = 0; l < mNumLayers; l++) {
+            mSizes[l] = layers.get(l).size();
+            mActivations[l] = getActivationCode(layers.get(l).behaviourType);
+            mBiasOffsets[l] = biasCount;
+            biasCount += mSizes[l];
+
+            if (l > 0) {
+                mWeightOffsets[l - 1] = weightCount;
+                weightCount += mSizes[l - 1] * mSizes[l];
+            }
+        }
+
+        mBiases = new double[biasCount];
+        mOutputs = new double[biasCount];
+        mWeights = new double[weightCount];
+
+        for (int l = 0; l < mNumLayers; l++) {
+            System.arraycopy(layers.get(l).biases, 0, mBiases, mBiasOffsets[l], mSizes[l]);
+        }
+
+        for (int h = 0; h < mNumLayers - 1; h++) {
+            double[][] connection = connections.get(h);
+            int size_k = mSizes[h + 1];
+            for (int hn = 0; hn < mSizes[h]; hn++) {
+                System.arraycopy(connection[hn], 0, mWeights, mWeightOffsets[h] + hn * size_k, size_k);
+            }
+        }
+
+        mResult = new double[mNumLayers > 0 ? mSizes[mNumLayers - 1] : 0];
+    }
+
+    /**
+     * Compile a network descriptor
+     * @param networkDescriptor NetworkDescriptor object
+     * @return CompiledNetwork equivalent to a NeuralNetwork created from the same descriptor
+     * @throws TopologyException Throws TopologyException when the descriptor contains no layers
+     */
+    public static CompiledNetwork compile(NetworkDescriptor networkDescriptor) throws TopologyException {
+        if (networkDescriptor == null || networkDescriptor.getLayerDescriptors().isEmpty()) {
+            throw new TopologyException("Cannot compile an empty network.");
+        }
+
+        return new CompiledNetwork(networkDescriptor);
+    }
+
+    /**
+     * Execute a cycle of the network. The returned vector is reused by subsequent calls.
+     * @param netInput Network input vector
+     * @return Network output vector
+     */
+    public double[] execute(double[] netInput) {
+        final double[] outputs = mOutputs;
+        final double[] biases = mBiases;
+        final double[] weights = mWeights;
+
+        // Input layer
+        int size_0 = mSizes[0];
+        for (int n = 0; n < size_0; n++) {
+            outputs[n] = netInput[n] - biases[n];
+        }
+        activate(mActivations[0], outputs, 0, size_0);
+
+        for (int k = 1; k < mNumLayers; k++) {
+            int size_h = mSizes[k - 1];
+            int size_k = mSizes[k];
+            int hOffset = mBiasOffsets[k - 1];
+            int kOffset = mBiasOffsets[k];
+            int wOffset = mWeightOffsets[k - 1];
+
+            // Weighted sum, accumulated row by row, so the weights are read sequentially
+            for (int kn = 0; kn < size_k; kn++) {
+                outputs[kOffset + kn] = 0.0;
+            }
+
+            int kEnd = kOffset + size_k;
+            int kUnrolled = kOffset + (size_k & ~3);
+            for (int hn = 0; hn < size_h; hn++) {
+                double x = outputs[hOffset + hn];
+                if (x == 0.0) {
+                    continue;
+                }
+                int w = wOffset + hn * size_k - kOffset;
+                int j = kOffset;
+                for (; j < kUnrolled; j += 4) {
+                    outputs[j] += weights[w + j] * x;
+                    outputs[j + 1] += weights[w + j + 1] * x;
+                    outputs[j + 2] += weights[w + j + 2] * x;
+                    outputs[j + 3] += weights[w + j + 3] * x;
+                }
+                for (; j < kEnd; j++) {
+                    outputs[j] += weights[w + j] * x;
+                }
+            }
+
+            for (int j = kOffset; j < kEnd; j++) {
+                outputs[j] -= biases[j];
+            }
+            activate(mActivations[k], outputs, kOffset, size_k);
+        }
+
+        System.arraycopy(outputs, mBiasOffsets[mNumLayers - 1], mResult, 0, mResult.length);
+        return mResult;
+    }
+
+    /**
+     * Apply an activation function in place
+     * @param activation activation code
+     * @param values vector containing the layer input
+     * @param offset first element of the layer
+     * @param size size of the layer
+     */
+    private static void activate(int activation, double[] values, int offset, int size) {
+        int end = offset + size;
+        switch (activation) {
+            case IDENTITY:
+                break;
+
+            case RELU:
+                for (int j = offset; j < end; j++) {
+                    values[j] = values[j] > 0.0 ? values[j] : 0.0;
+                }
+                break;
+
+            case LEAKY_RELU:
+                for (int j = offset; j < end; j++) {
+                    values[j] = values[j] > 0.0 ? values[j] : LeakyReluFunction.DEFAULT_SLOPE * values[j];
+                }
+                break;
+
+            case TANH:
+                for (int j = offset; j < end; j++) {
+                    values[j] = Math.tanh(values[j]);
+                }
+                break;
+
+            case SOFTMAX:
+                SOFTMAX_FUNCTION.activate(values, values, offset, size);
+                break;
+
+            case LOGISTIC:
+            default:
+                for (int j = offset; j < end; j++) {
+                    values[j] = 1.0 / (1.0 + Math.exp(-values[j]));
+                }
+        }
+    }
+
+    private static int getActivationCode(NetworkDescriptor.BehaviourType behaviourType) {
+        switch (behaviourType) {
+            case IDENTITY:
+                return IDENTITY;
+
+            case RELU:
+                return RELU;
+
+            case LEAKY_RELU:
+                return LEAKY_RELU;
+
+            case TANH:
+                return TANH;
+
+            case SOFTMAX:
+                return SOFTMAX;
+
+            case LOGISTIC:
+            default:
+                return LOGISTIC;
+        }
+    }
+
+    /**
+     * Get number of layers
+     * @return number of layers
+     */
+    public int getNumberOfLayers() {
+        return mNumLayers;
+    }
+
+    /**
+     * Get input size (number of neurons in the input layer)
+     * @return input size
+     */
+    public int getInputSize() {
+        return mSizes[0];
+    }
+
+    /**
+     * Get output size (number of neurons in the output layer)
+     * @return output size
+     */
+    public int getOutputSize() {
+        return mSizes[mNumLayers - 1];
+    }
+}
@@ -0,0 +1,512 @@
+/*
+ * Copyright 2017 Javier Lancha Vázquez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.jlantxa.neural;
+
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Function;
+
+/**
+ * A FastNetworkLoader reads the XML files written by NetworkXmlParser without building a DOM.
+ * The file is scanned once as bytes to find the layers and the rows of every connection matrix; the rows
+ * are then parsed in chunks on several threads with a number parser that works directly on the bytes and
+ * only allocates for the rare values it cannot convert exactly.
+ *
+ * In lazy mode, getNetwork() returns as soon as the layers are known. Connection matrices keep parsing
+ * in the background, in layer order, and the network waits for each of them on first use, so the first
+ * layers of the first inference overlap with the parsing of the deeper ones.
+ *
+ * Files using XML features the writer never produces (comments, CDATA, entities, DTDs) are handed over
+ * to NetworkXmlParser.
+ */
+public class FastNetworkLoader
+{
+    private static final String LAYER_TAG = "Layer";
+    private static final String NEURON_TAG = "Neuron";
+    private static final String CONNECTION_TAG = "Connection";
+    private static final String NODE_TAG = "Node";
+    private static final String WEIGHT_TAG = "Weight";
+    private static final String BEHAVIOUR_ATTRIBUTE = "behaviour";
+
+    /**
+     * Approximate number of weights parsed by one task
+     */
+    private static final int CHUNK_VALUES = 1 << 14;
+
+    /**
+     * Exact powers of ten for the fast path of parseDouble()
+     */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final int mThreads;
+
+    /**
+     * Create a loader using all available processors
+     */
+    public FastNetworkLoader() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a loader
+     * @param threads number of parser threads
+     */
+    public FastNetworkLoader(int threads) {
+        mThreads = Math.max(threads, 1);
+    }
+
+    /**
+     * Get a network descriptor from an XML file
+     * @param xmlFile XML file containing the network description
+     * @return NetworkDescriptor object which describes the network topology
+     * @throws IOException if the file cannot be read
+     * @throws TopologyException if the file does not describe a valid network
+     */
+    public NetworkDescriptor getNetworkDescriptor(File xmlFile) throws IOException, TopologyException {
+        byte[] xml = Files.readAllBytes(xmlFile.toPath());
+        if (!isSupported(xml)) {
+            return parseWithDom(xmlFile);
+        }
+
+        Document document = scan(xml);
+        List<Future<double[][]>> connections = parseConnections(xml, document);
+
+        NetworkDescriptor networkDescriptor = new NetworkDescriptor();
+        networkDescriptor.addLayer(document.biases.get(0), document.behaviours.get(0), null);
+        for (int l = 1; l < document.biases.size(); l++) {
+            networkDescriptor.addLayer(document.biases.get(l), document.behaviours.get(l),
+                    await(connections.get(l - 1)));
+        }
+        return networkDescriptor;
+    }
+
+    /**
+     * Get a NeuralNetwork instance from an XML file
+     * @param xmlFile XML file containing the network description
+     * @param lazy if true, return before the connection matrices have been parsed. Errors in a connection
+     *             matrix are then reported as an IllegalStateException on first use of the matrix.
+     * @return NeuralNetwork described by the file
+     * @throws IOException if the file cannot be read
+     * @throws TopologyException if the file does not describe a valid network
+     */
+    public NeuralNetwork getNetwork(File xmlFile, boolean lazy) throws IOException, TopologyException {
+        if (!lazy) {
+            return new NeuralNetwork(getNetworkDescriptor(xmlFile));
+        }
+
+        byte[] xml = Files.readAllBytes(xmlFile.toPath());
+        if (!isSupported(xml)) {
+            return new NeuralNetwork(parseWithDom(xmlFile));
+        }
+
+        Document document = scan(xml);
+        return new NeuralNetwork(document.biases, document.behaviours, parseConnections(xml, document));
+    }
+
+    private static NetworkDescriptor parseWithDom(File xmlFile) throws IOException, TopologyException {
+        try {
+            return NetworkXmlParser.getNetworkDescriptor(xmlFile);
+        } catch (SAXException | ParserConfigurationException e) {
+            throw new IOException("Cannot parse " + xmlFile, e);
+        }
+    }
+
+    /**
+     * Check that the file contains no comments, CDATA sections, entity references or DTDs
+     */
+    private static boolean isSupported(byte[] xml) {
+        for (int p = 0; p < xml.length; p++) {
+            if (xml[p] == '&' || (xml[p] == '<' && p + 1 < xml.length && xml[p + 1] == '!')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Layers and connection row offsets found by scan()
+     */
+    private static class Document
+    {
+        final ArrayList<double[]> biases = new ArrayList<>();
+        final ArrayList<NetworkDescriptor.BehaviourType> behaviours = new ArrayList<>();
+
+        /**
+         * For every connection matrix, the offset of every Node element, followed by the end of the matrix
+         */
+        final ArrayList<int[]> rows = new ArrayList<>();
+    }
+
+    /**
+     * Scan the whole file once: parse the layers and find the rows of every connection matrix
+     */
+    private static Document scan(byte[] xml) throws TopologyException {
+        Document document = new Document();
+        int p = 0;
+        while ((p = nextTag(xml, p)) >= 0) {
+            if (isTag(xml, p, LAYER_TAG)) {
+                int end = find(xml, p, "</" + LAYER_TAG);
+                document.behaviours.add(NetworkXmlParser.getBehaviourTypeFromAttribute(
+                        getAttribute(xml, p, BEHAVIOUR_ATTRIBUTE)));
+                document.biases.add(parseValues(xml, p, end, NEURON_TAG));
+                p = end;
+            } else if (isTag(xml, p, CONNECTION_TAG)) {
+                int end = find(xml, p, "</" + CONNECTION_TAG);
+                int[] rows = new int[16];
+                int count = 0;
+                int q = p + 1;
+                while ((q = nextTag(xml, q)) >= 0 && q < end) {
+                    if (isTag(xml, q, NODE_TAG)) {
+                        if (count + 1 >= rows.length) {
+                            rows = Arrays.copyOf(rows, 2 * rows.length);
+                        }
+                        rows[count++] = q;
+                    }
+                    q++;
+                }
+                rows[count] = end;
+                document.rows.add(Arrays.copyOf(rows, count + 1));
+                p = end;
+            }
+            p++;
+        }
+
+        if (document.biases.isEmpty()) {
+            throw new TopologyException("The file describes no layers.");
+        }
+        if (document.biases.size() != document.rows.size() + 1) {
+            throw new TopologyException("There must be one connection matrix for every layer after the input layer");
+        }
+        for (int h = 0; h < document.rows.size(); h++) {
+            if (document.rows.get(h).length - 1 != document.biases.get(h).length) {
+                throw new TopologyException("Layer connection number " + h + " has " +
+                        (document.rows.get(h).length - 1) + " nodes, expected " + document.biases.get(h).length);
+            }
+        }
+        return document;
+    }
+
+    /**
+     * Start parsing all connection matrices. Rows are split into chunks that are parsed in layer order.
+     */
+    private List<Future<double[][]>> parseConnections(final byte[] xml, Document document) {
+        ExecutorService executor = Executors.newFixedThreadPool(mThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "network-loader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        List<Future<double[][]>> connections = new ArrayList<>();
+        for (int h = 0; h < document.rows.size(); h++) {
+            final int[] rows = document.rows.get(h);
+            final int connectionIndex = h;
+            final int size_k = document.biases.get(h + 1).length;
+            final double[][] connection = new double[rows.length - 1][];
+            int chunkRows = Math.max(CHUNK_VALUES / size_k, 1);
+
+            ArrayList<CompletableFuture<Void>> chunks = new ArrayList<>();
+            for (int from = 0; from < connection.length; from += chunkRows) {
+                final int first = from;
+                final int last = Math.min(from + chunkRows, connection.length);
+                chunks.add(CompletableFuture.runAsync(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int r = first; r < last; r++) {
+                                connection[r] = parseValues(xml, rows[r], rows[r + 1], WEIGHT_TAG);
+                                if (connection[r].length != size_k) {
+                                    throw new TopologyException("Layer connection number " + connectionIndex +
+                                            " as described in the XML does not match the size of layer " +
+                                            (connectionIndex + 1));
+                                }
+                            }
+                        } catch (TopologyException e) {
+                            throw new CompletionException(e);
+                        }
+                    }
+                }, executor));
+            }
+
+            connections.add(CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[0]))
+                    .thenApply(new Function<Void, double[][]>() {
+                        @Override
+                        public double[][] apply(Void done) {
+                            return connection;
+                        }
+                    }));
+        }
+
+        // Submitted tasks still run; the threads end once they are done
+        executor.shutdown();
+        return connections;
+    }
+
+    private static double[][] await(Future<double[][]> connection) throws IOException, TopologyException {
+        try {
+            return connection.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading the network", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TopologyException) {
+                throw (TopologyException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Parse the text of every element with the given name between from and to
+     */
+    private static double[] parseValues(byte[] xml, int from, int to, String tag) {
+        double[] values = new double[16];
+        int count = 0;
+        int p = from + 1;
+        while ((p = nextTag(xml, p)) >= 0 && p < to) {
+            if (isTag(xml, p, tag)) {
+                int start = indexOf(xml, (byte) '>', p) + 1;
+                int end = indexOf(xml, (byte) '<', start);
+                if (start <= 0 || end < 0) {
+                    break;
+                }
+                if (count == values.length) {
+                    values = Arrays.copyOf(values, 2 * values.length);
+                }
+                values[count++] = parseDouble(xml, start, end);
+                p = end;
+            } else {
+                p++;
+            }
+        }
+        return Arrays.copyOf(values, count);
+    }
+
+    /**
+     * Parse a decimal number. Numbers with at most 18 significant digits and a decimal exponent of at most 22
+     * that fit the 53-bit mantissa of a double are converted exactly with one multiplication or division.
+     * Everything else goes through Double.parseDouble(), so the result is always identical.
+     * @param bytes ASCII text
+     * @param from first byte of the number
+     * @param to end of the number, exclusive
+     * @return parsed value
+     */
+    static double parseDouble(byte[] bytes, int from, int to) {
+        while (from < to && bytes[from] <= ' ') {
+            from++;
+        }
+        while (to > from && bytes[to - 1] <= ' ') {
+            to--;
+        }
+
+        int p = from;
+        boolean negative = false;
+        if (p < to && (bytes[p] == '-' || bytes[p] == '+')) {
+            negative = bytes[p] == '-';
+            p++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean anyDigit = false;
+        boolean fraction = false;
+        for (; p < to; p++) {
+            byte c = bytes[p];
+            if (c == '.' && !fraction) {
+                fraction = true;
+                continue;
+            }
+            if (c < '0' || c > '9') {
+                break;
+            }
+
+            anyDigit = true;
+            if (mantissa == 0 && c == '0') {
+                // Leading zero
+                if (fraction) {
+                    exponent--;
+                }
+                continue;
+            }
+            if (digits == 18) {
+                return parseSlow(bytes, from, to);
+            }
+            mantissa = 10 * mantissa + (c - '0');
+            digits++;
+            if (fraction) {
+                exponent--;
+            }
+        }
+
+        if (p < to && (bytes[p] == 'e' || bytes[p] == 'E')) {
+            p++;
+            boolean negativeExponent = false;
+            if (p < to && (bytes[p] == '-' || bytes[p] == '+')) {
+                negativeExponent = bytes[p] == '-';
+                p++;
+            }
+
+            int value = 0;
+            int start = p;
+            for (; p < to && bytes[p] >= '0' && bytes[p] <= '9'; p++) {
+                if (value > 1000) {
+                    return parseSlow(bytes, from, to);
+                }
+                value = 10 * value + (bytes[p] - '0');
+            }
+            if (p == start) {
+                return parseSlow(bytes, from, to);
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+
+        if (!anyDigit || p != to) {
+            return parseSlow(bytes, from, to);
+        }
+
+        if (mantissa == 0) {
+            return negative ? -0.0 : 0.0;
+        }
+
+        if (mantissa < (1L << 53) && exponent >= -22 && exponent <= 22) {
+            double value = (double) mantissa;
+            value = exponent < 0 ? value / POWERS_OF_TEN[-exponent] : value * POWERS_OF_TEN[exponent];
+            return negative ? -value : value;
+        }
+
+        return parseSlow(bytes, from, to);
+    }
+
+    private static double parseSlow(byte[] bytes, int from, int to) {
+        return Double.parseDouble(new String(bytes, from, to - from, StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Find the next start tag at or after p, skipping end tags and processing instructions
+     * @return offset of the '<' of the tag, or -1
+     */
+    private static int nextTag(byte[] xml, int p) {
+        while ((p = indexOf(xml, (byte) '<', p)) >= 0) {
+            if (p + 1 < xml.length && xml[p + 1] != '/' && xml[p + 1] != '?') {
+                return p;
+            }
+            p++;
+        }
+        return -1;
+    }
+
+    /**
+     * Check whether the tag at p has the given name
+     */
+    private static boolean isTag(byte[] xml, int p, String name) {
+        int end = p + 1 + name.length();
+        if (end >= xml.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (xml[p + 1 + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        byte next = xml[end];
+        return next == '>' || next == '/' || next <= ' ';
+    }
+
+    /**
+     * Get the value of an attribute of the tag at p, or an empty string if the tag has no such attribute
+     */
+    private static String getAttribute(byte[] xml, int p, String name) {
+        int end = indexOf(xml, (byte) '>', p);
+        byte[] key = name.getBytes(StandardCharsets.US_ASCII);
+        for (int q = p; q + key.length < end; q++) {
+            if (xml[q] > ' ' || !matches(xml, q + 1, key)) {
+                continue;
+            }
+
+            int r = q + 1 + key.length;
+            while (r < end && xml[r] <= ' ') {
+                r++;
+            }
+            if (r >= end || xml[r] != '=') {
+                continue;
+            }
+            r++;
+            while (r < end && xml[r] <= ' ') {
+                r++;
+            }
+            if (r >= end || (xml[r] != '"' && xml[r] != '\'')) {
+                continue;
+            }
+
+            int valueEnd = indexOf(xml, xml[r], r + 1);
+            return new String(xml, r + 1, valueEnd - r - 1, StandardCharsets.UTF_8);
+        }
+        return "";
+    }
+
+    private static boolean matches(byte[] xml, int p, byte[] key) {
+        for (int i = 0; i < key.length; i++) {
+            if (xml[p + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int find(byte[] xml, int p, String text) throws TopologyException {
+        byte[] key = text.getBytes(StandardCharsets.US_ASCII);
+        for (int q = p; q + key.length <= xml.length; q++) {
+            if (xml[q] == key[0] && matches(xml, q, key)) {
+                return q;
+            }
+        }
+        throw new TopologyException("Missing " + text + ">");
+    }
+
+    private static int indexOf(byte[] xml, byte b, int p) {
+        for (; p < xml.length; p++) {
+            if (xml[p] == b) {
+                return p;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright 2017 Javier Lancha Vázquez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.jlantxa.neural;
+
+import org.jlantxa.neural.optimizer.AdamOptimizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A HyperparameterSearch evaluates network configurations (hidden layer sizes and learning rate)
+ * with k-fold cross-validation. Every (configuration, fold) pair is an independent training job;
+ * all jobs run concurrently on a thread pool and read the same data set, which is never copied.
+ *
+ * The search uses successive halving: all configurations are trained for a few epochs, the worse half
+ * (by mean validation loss over the folds) is dropped, the survivors are trained for twice as many epochs,
+ * and so on until one configuration is left or the epoch budget is exhausted.
+ *
+ * Networks have an identity input layer and logistic hidden and output layers, and are trained with Adam.
+ */
+public class HyperparameterSearch
+{
+    private final double[][] mInputs;
+    private final double[][] mTargets;
+    private final int mFolds;
+    private final int mThreads;
+    private final long mSeed;
+
+    /**
+     * Fold f validates on samples mFoldIndices[mFoldStarts[f]..mFoldStarts[f+1])
+     */
+    private final int[] mFoldIndices;
+    private final int[] mFoldStarts;
+
+    /**
+     * Create a search over a data set
+     * @param inputs input vectors, shared read-only by all jobs
+     * @param targets target output vectors, shared read-only by all jobs
+     * @param folds number of cross-validation folds (at least 2)
+     * @param threads number of concurrent training jobs
+     * @param seed seed for fold assignment, initialization and shuffling
+     */
+    public HyperparameterSearch(double[][] inputs, double[][] targets, int folds, int threads, long seed) {
+        if (inputs.length != targets.length || inputs.length < folds || folds < 2) {
+            throw new IllegalArgumentException("The data set must have one target per input and at least " +
+                    "as many samples as folds (at least 2)");
+        }
+
+        mInputs = inputs;
+        mTargets = targets;
+        mFolds = folds;
+        mThreads = Math.max(threads, 1);
+        mSeed = seed;
+
+        // Shuffle the samples and split them in folds
+        Random random = new Random(seed);
+        mFoldIndices = new int[inputs.length];
+        for (int i = 0; i < mFoldIndices.length; i++) {
+            mFoldIndices[i] = i;
+        }
+        shuffle(mFoldIndices, random);
+
+        mFoldStarts = new int[folds + 1];
+        for (int f = 0; f <= folds; f++) {
+            mFoldStarts[f] = (int) ((long) inputs.length * f / folds);
+        }
+    }
+
+    /**
+     * Build all combinations of hidden layer topologies and learning rates
+     * @param hiddenLayers candidate hidden layer sizes, e.g. {{8}, {16}, {16, 8}}
+     * @param learningRates candidate learning rates
+     * @return list of configurations
+     */
+    public static List<Configuration> grid(int[][] hiddenLayers, double[] learningRates) {
+        ArrayList<Configuration> configurations = new ArrayList<>();
+        for (int[] hidden : hiddenLayers) {
+            for (double learningRate : learningRates) {
+                configurations.add(new Configuration(hidden, learningRate));
+            }
+        }
+        return configurations;
+    }
+
+    /**
+     * Draw random configurations, with a learning rate sampled log-uniformly
+     * @param hiddenLayers candidate hidden layer sizes
+     * @param minLearningRate lowest learning rate
+     * @param maxLearningRate highest learning rate
+     * @param count number of configurations
+     * @param seed random seed
+     * @return list of configurations
+     */
+    public static List<Configuration> random(int[][] hiddenLayers, double minLearningRate, double maxLearningRate,
+                                             int count, long seed) {
+        Random random = new Random(seed);
+        double logMin = Math.log(minLearningRate);
+        double logMax = Math.log(maxLearningRate);
+
+        ArrayList<Configuration> configurations = new ArrayList<>();
+        for (int c = 0; c < count; c++) {
+            int[] hidden = hiddenLayers[random.nextInt(hiddenLayers.length)];
+            double learningRate = Math.exp(logMin + random.nextDouble() * (logMax - logMin));
+            configurations.add(new Configuration(hidden, learningRate));
+        }
+        return configurations;
+    }
+
+    /**
+     * Run the search
+     * @param configurations configurations to evaluate
+     * @param minEpochs epochs trained by every configuration in the first round
+     * @param maxEpochs maximum total epochs trained by any configuration
+     * @param batchSize number of samples per training step
+     * @return results of all configurations, best first. Configurations dropped early keep the loss of
+     * the round in which they were dropped.
+     * @throws TopologyException if a configuration does not describe a valid network
+     * @throws InterruptedException if the calling thread is interrupted before the search completes
+     */
+    public List<Result> run(List<Configuration> configurations, int minEpochs, int maxEpochs, int batchSize)
+            throws TopologyException, InterruptedException {
+        ArrayList<Candidate> candidates = new ArrayList<>();
+        long jobSeed = mSeed;
+        for (Configuration configuration : configurations) {
+            Candidate candidate = new Candidate(configuration);
+            for (int f = 0; f < mFolds; f++) {
+                candidate.jobs.add(new Job(configuration, f, batchSize, ++jobSeed));
+            }
+            candidates.add(candidate);
+        }
+
+        ArrayList<Result> results = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+        try {
+            List<Candidate> alive = candidates;
+            int epochs = Math.max(minEpochs, 1);
+            int trained = 0;
+
+            while (!alive.isEmpty()) {
+                // Train all surviving jobs up to the epoch budget of this round
+                ArrayList<Job> jobs = new ArrayList<>();
+                for (Candidate candidate : alive) {
+                    for (Job job : candidate.jobs) {
+                        job.epochs = epochs - trained;
+                        jobs.add(job);
+                    }
+                }
+                for (Future<Double> future : executor.invokeAll(jobs)) {
+                    future.get();
+                }
+                trained = epochs;
+
+                for (Candidate candidate : alive) {
+                    double loss = 0.0;
+                    for (Job job : candidate.jobs) {
+                        loss += job.validationLoss;
+                    }
+                    candidate.loss = loss / mFolds;
+                    candidate.epochs = trained;
+                }
+
+                Collections.sort(alive, new Comparator<Candidate>() {
+                    @Override
+                    public int compare(Candidate a, Candidate b) {
+                        return Double.compare(a.loss, b.loss);
+                    }
+                });
+
+                // Keep the better half, or everything that is left if the budget is exhausted
+                int keep = (alive.size() + 1) / 2;
+                if (alive.size() == 1 || epochs >= maxEpochs) {
+                    keep = 0;
+                }
+                for (Candidate candidate : alive.subList(keep, alive.size())) {
+                    results.add(new Result(candidate.configuration, candidate.loss, candidate.epochs));
+                    candidate.jobs.clear();
+                }
+                alive = new ArrayList<>(alive.subList(0, keep));
+                epochs = Math.min(epochs * 2, maxEpochs);
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+
+        // Surviving configurations are trained longest, so they rank before the dropped ones
+        Collections.sort(results, new Comparator<Result>() {
+            @Override
+            public int compare(Result a, Result b) {
+                if (a.epochs != b.epochs) {
+                    return Integer.compare(b.epochs, a.epochs);
+                }
+                return Double.compare(a.loss, b.loss);
+            }
+        });
+        return results;
+    }
+
+    private static void shuffle(int[] indices, Random random) {
+        for (int i = indices.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = indices[i];
+            indices[i] = indices[j];
+            indices[j] = tmp;
+        }
+    }
+
+    /**
+     * A network configuration
+     */
+    public static class Configuration
+    {
+        private final int[] hiddenLayers;
+        private final double learningRate;
+
+        public Configuration(int[] hiddenLayers, double learningRate) {
+            this.hiddenLayers = hiddenLayers.clone();
+            this.learningRate = learningRate;
+        }
+
+        public int[] getHiddenLayers() {
+            return hiddenLayers.clone();
+        }
+
+        public double getLearningRate() {
+            return learningRate;
+        }
+
+        @Override
+        public String toString() {
+            return "hidden=" + Arrays.toString(hiddenLayers) + ", learningRate=" + learningRate;
+        }
+    }
+
+    /**
+     * Cross-validated result of a configuration
+     */
+    public static class Result
+    {
+        private final Configuration configuration;
+        private final double loss;
+        private final int epochs;
+
+        Result(Configuration configuration, double loss, int epochs) {
+            this.configuration = configuration;
+            this.loss = loss;
+            this.epochs = epochs;
+        }
+
+        public Configuration getConfiguration() {
+            return configuration;
+        }
+
+        /**
+         * @return mean validation loss over all folds
+         */
+        public double getLoss() {
+            return loss;
+        }
+
+        /**
+         * @return number of epochs the configuration was trained before it was ranked
+         */
+        public int getEpochs() {
+            return epochs;
+        }
+
+        @Override
+        public String toString() {
+            return configuration + ": loss=" + loss + " after " + epochs + " epochs";
+        }
+    }
+
+    private static class Candidate
+    {
+        final Configuration configuration;
+        final ArrayList<Job> jobs = new ArrayList<>();
+        double loss;
+        int epochs;
+
+        Candidate(Configuration configuration) {
+            this.configuration = configuration;
+        }
+    }
+
+    /**
+     * Training of one configuration on one fold. Keeps its network and optimizer state between rounds.
+     */
+    private class Job implements Callable<Double>
+    {
+        private final NetworkTrainer trainer;
+        private final int[] trainIndices;
+        private final int validationFrom;
+        private final int validationTo;
+        private final int batchSize;
+        private final Random random;
+        int epochs;
+        double validationLoss;
+
+        Job(Configuration configuration, int fold, int batchSize, long seed) throws TopologyException {
+            this.batchSize = Math.max(batchSize, 1);
+            this.random = new Random(seed);
+
+            validationFrom = mFoldStarts[fold];
+            validationTo = mFoldStarts[fold + 1];
+            trainIndices = new int[mFoldIndices.length - (validationTo - validationFrom)];
+            System.arraycopy(mFoldIndices, 0, trainIndices, 0, validationFrom);
+            System.arraycopy(mFoldIndices, validationTo, trainIndices, validationFrom,
+                    mFoldIndices.length - validationTo);
+
+            NeuralNetwork network = new NeuralNetwork(createDescriptor(configuration, random));
+            trainer = new NetworkTrainer(network, new AdamOptimizer(configuration.learningRate));
+        }
+
+        private NetworkDescriptor createDescriptor(Configuration configuration, Random random)
+                throws TopologyException {
+            int[] sizes = new int[configuration.hiddenLayers.length + 2];
+            sizes[0] = mInputs[0].length;
+            System.arraycopy(configuration.hiddenLayers, 0, sizes, 1, configuration.hiddenLayers.length);
+            sizes[sizes.length - 1] = mTargets[0].length;
+
+            NetworkDescriptor descriptor = new NetworkDescriptor();
+            descriptor.addLayer(new double[sizes[0]], NetworkDescriptor.BehaviourType.IDENTITY, null);
+            for (int l = 1; l < sizes.length; l++) {
+                double scale = 1.0 / Math.sqrt(sizes[l - 1]);
+                double[][] connections = new double[sizes[l - 1]][sizes[l]];
+                for (double[] row : connections) {
+                    for (int k = 0; k < row.length; k++) {
+                        row[k] = (2.0 * random.nextDouble() - 1.0) * scale;
+                    }
+                }
+                descriptor.addLayer(new double[sizes[l]], NetworkDescriptor.BehaviourType.LOGISTIC, connections);
+            }
+            return descriptor;
+        }
+
+        @Override
+        public Double call() {
+            for (int epoch = 0; epoch < epochs; epoch++) {
+                shuffle(trainIndices, random);
+                for (int from = 0; from < trainIndices.length; from += batchSize) {
+                    int to = Math.min(from + batchSize, trainIndices.length);
+                    trainer.trainBatch(mInputs, mTargets, trainIndices, from, to);
+                }
+            }
+
+            double loss = 0.0;
+            for (int from = validationFrom; from < validationTo; from += batchSize) {
+                int to = Math.min(from + batchSize, validationTo);
+                loss += trainer.evaluate(mInputs, mTargets, mFoldIndices, from, to) * (to - from);
+            }
+            validationLoss = loss / (validationTo - validationFrom);
+            return validationLoss;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2017 Javier Lancha Vázquez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.jlantxa.neural;
+
+/**
+ * The InferenceEngine interface models anything that can execute a network on an input vector,
+ * so alternative implementations can be compared with the reference NeuralNetwork.
+ */
+public interface InferenceEngine
+{
+    /**
+     * Execute a cycle of the network
+     * @param netInput Network input vector
+     * @return Network output vector. Implementations may reuse it in subsequent calls.
+     */
+    double[] execute(double[] netInput);
+
+    /**
+     * Get input size (number of neurons in the input layer)
+     * @return input size
+     */
+    int getInputSize();
+
+    /**
+     * Get output size (number of neurons in the output layer)
+     * @return output size
+     */
+    int getOutputSize();
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2017 Javier Lancha Vázquez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.jlantxa.neural;
+
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * An InferenceValidator compares a candidate InferenceEngine (reduced precision, approximated
+ * activations, pruning...) with the reference NeuralNetwork on a set of sample inputs.
+ * The Report contains the maximum and mean absolute error, the fraction of samples where both agree on
+ * the highest-ranked output, and the speedup of the candidate. validate() fails with a
+ * ValidationException when any of the configured budgets is exceeded, so it can gate model rollouts.
+ */
+public class InferenceValidator
+{
+    /**
+     * Creates the candidate engine for a network
+     */
+    public interface EngineFactory
+    {
+        InferenceEngine create(NetworkDescriptor networkDescriptor) throws TopologyException;
+    }
+
+    private static final int TIMING_ROUNDS = 5;
+
+    private final double mMaxErrorBudget;
+    private final double mMeanErrorBudget;
+    private final double mMinRankAgreement;
+
+    /**
+     * Create a validator with error budgets
+     * @param maxErrorBudget maximum allowed absolute error on any output
+     * @param meanErrorBudget maximum allowed mean absolute error over all outputs
+     * @param minRankAgreement minimum fraction of samples whose highest-ranked output must agree, in [0, 1]
+     */
+    public InferenceValidator(double maxErrorBudget, double meanErrorBudget, double minRankAgreement) {
+        mMaxErrorBudget = maxErrorBudget;
+        mMeanErrorBudget = meanErrorBudget;
+        mMinRankAgreement = minRankAgreement;
+    }
+
+    /**
+     * Validate a candidate engine for the network described in an XML file
+     * @param xmlFile XML file containing the network description
+     * @param factory factory of the candidate engine
+     * @param samples sample input vectors
+     * @return validation report
+     * @throws ValidationException if any budget is exceeded
+     * @throws TopologyException TopologyException
+     * @throws ParserConfigurationException ParserConfigurationException
+     * @throws SAXException SAXException
+     * @throws IOException IOException
+     */
+    public Report validate(File xmlFile, EngineFactory factory, double[][] samples)
+            throws ValidationException, TopologyException, IOException, SAXException, ParserConfigurationException
+    {
+        // The factory gets its own descriptor, so changing the weights in place cannot affect the reference
+        NeuralNetwork reference = new NeuralNetwork(NetworkXmlParser.getNetworkDescriptor(xmlFile));
+        InferenceEngine candidate = factory.create(NetworkXmlParser.getNetworkDescriptor(xmlFile));
+        return validate(reference, candidate, samples);
+    }
+
+    /**
+     * Validate a candidate engine against a reference engine
+     * @param reference reference engine
+     * @param candidate candidate engine
+     * @param samples sample input vectors
+     * @return validation report
+     * @throws ValidationException if any budget is exceeded
+     */
+    public Report validate(InferenceEngine reference, InferenceEngine candidate, double[][] samples)
+            throws ValidationException
+    {
+        if (samples.length == 0) {
+            throw new ValidationException("No samples to validate.");
+        }
+        if (reference.getInputSize() != candidate.getInputSize() ||
+                reference.getOutputSize() != candidate.getOutputSize()) {
+            throw new ValidationException("The candidate engine does not match the topology of the reference.");
+        }
+
+        // Accuracy
+        int outputSize = reference.getOutputSize();
+        double maxError = 0.0;
+        double errorSum = 0.0;
+        int agreements = 0;
+        for (double[] sample : samples) {
+            double[] expected = reference.execute(sample).clone();
+            double[] actual = candidate.execute(sample);
+
+            for (int n = 0; n < outputSize; n++) {
+                double error = Math.abs(actual[n] - expected[n]);
+                // NaN must never pass a budget
+                if (Double.isNaN(error)) {
+                    error = Double.POSITIVE_INFINITY;
+                }
+                maxError = Math.max(maxError, error);
+                errorSum += error;
+            }
+
+            if (argMax(expected) == argMax(actual)) {
+                agreements++;
+            }
+        }
+
+        // Speed, best of several rounds
+        long referenceNanos = Long.MAX_VALUE;
+        long candidateNanos = Long.MAX_VALUE;
+        for (int round = 0; round < TIMING_ROUNDS; round++) {
+            referenceNanos = Math.min(referenceNanos, time(reference, samples));
+            candidateNanos = Math.min(candidateNanos, time(candidate, samples));
+        }
+
+        Report report = new Report(maxError, errorSum / (samples.length * (double) outputSize),
+                agreements / (double) samples.length, referenceNanos, candidateNanos, samples.length);
+
+        if (report.maxError > mMaxErrorBudget) {
+            throw new ValidationException("Maximum absolute error " + report.maxError +
+                    " exceeds the budget of " + mMaxErrorBudget + "\n" + report);
+        }
+        if (report.meanError > mMeanErrorBudget) {
+            throw new ValidationException("Mean absolute error " + report.meanError +
+                    " exceeds the budget of " + mMeanErrorBudget + "\n" + report);
+        }
+        if (report.rankAgreement < mMinRankAgreement) {
+            throw new ValidationException("Rank agreement " + report.rankAgreement +
+                    " is below the minimum of " + mMinRankAgreement + "\n" + report);
+        }
+
+        return report;
+    }
+
+    private static long time(InferenceEngine engine, double[][] samples) {
+        long start = System.nanoTime();
+        for (double[] sample : samples) {
+            engine.execute(sample);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static int argMax(double[] vector) {
+        int max = 0;
+        for (int n = 1; n < vector.length; n++) {
+            if (vector[n] > vector[max]) {
+                max = n;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Result of a validation
+     */
+    public static class Report
+    {
+        private final double maxError;
+        private final double meanError;
+        private final double rankAgreement;
+        private final long referenceNanos;
+        private final long candidateNanos;
+        private final int samples;
+
+        Report(double maxError, double meanError, double rankAgreement,
+               long referenceNanos, long candidateNanos, int samples) {
+            this.maxError = maxError;
+            this.meanError = meanError;
+            this.rankAgreement = rankAgreement;
+            this.referenceNanos = referenceNanos;
+            this.candidateNanos = candidateNanos;
+            this.samples = samples;
+        }
+
+        public double getMaxError() {
+            return maxError;
+        }
+
+        public double getMeanError() {
+            return meanError;
+        }
+
+        /**
+         * @return fraction of samples where reference and candidate agree on the highest-ranked output
+         */
+        public double getRankAgreement() {
+            return rankAgreement;
+        }
+
+        /**
+         * @return execution time of the reference divided by execution time of the candidate
+         */
+        public double getSpeedup() {
+            return candidateNanos > 0 ? referenceNanos / (double) candidateNanos : Double.POSITIVE_INFINITY;
+        }
+
+        @Override
+        public String toString() {
+            return "Samples: " + samples + "\n" +
+                    "Max. absolute error: " + maxError + "\n" +
+                    "Mean absolute error: " + meanError + "\n" +
+                    "Rank agreement: " + rankAgreement + "\n" +
+                    "Speedup: " + getSpeedup();
+        }
+    }
+}
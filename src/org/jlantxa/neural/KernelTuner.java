@@ -0,0 +1,223 @@
+/*
+ * Copyright 2017 Javier Lancha Vázquez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.jlantxa.neural;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * A KernelTuner selects the fastest LayerKernel and block size for every layer of a NeuralNetwork.
+ * Every layer shape (size of the previous layer x size of the layer) is calibrated once with short
+ * microbenchmarks of all candidate kernels. The choices are stored in a per-host tuning cache file,
+ * so later networks with the same layer shapes are configured without calibrating again.
+ *
+ * In reproducible mode, the PARALLEL kernel is replaced by REPRODUCIBLE. All remaining candidates produce
+ * bit-identical sums, so the outputs of a tuned network no longer depend on the host, the number of
+ * processors or the calibration results. A cached choice is only used if it is one of the current
+ * candidates, so a stale or edited cache entry cannot install a PARALLEL kernel in reproducible mode.
+ */
+public class KernelTuner
+{
+    private static final int[] BLOCK_SIZES = {16, 64, 256};
+    private static final long CALIBRATION_NANOS = 2000000;
+    private static final int CALIBRATION_ROUNDS = 3;
+
+    private final File mCacheFile;
+    private final Properties mCache = new Properties();
+    private final Map<String, String> mChoices = new TreeMap<>();
+    private boolean mCacheChanged = false;
+    private boolean mReproducible = false;
+
+    /**
+     * Create a tuner backed by a tuning cache file. The file is read if it exists and written after
+     * new layer shapes have been calibrated.
+     * @param cacheFile tuning cache file, or null to calibrate every time without persisting
+     */
+    public KernelTuner(File cacheFile) {
+        mCacheFile = cacheFile;
+
+        if (mCacheFile != null && mCacheFile.isFile()) {
+            try (InputStream in = new FileInputStream(mCacheFile)) {
+                mCache.load(in);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Create a tuner backed by the default tuning cache of this host,
+     * located in ~/.neural/kernels-[host]-[processors].properties
+     * @return KernelTuner using the default cache file
+     */
+    public static KernelTuner getDefault() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            host = "localhost";
+        }
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        File dir = new File(System.getProperty("user.home"), ".neural");
+        return new KernelTuner(new File(dir, "kernels-" + host + "-" + processors + ".properties"));
+    }
+
+    /**
+     * Restrict the candidates to kernels whose results are bit-identical to the sequential kernels
+     * @param reproducible true to select only reproducible kernels
+     */
+    public synchronized void setReproducible(boolean reproducible) {
+        mReproducible = reproducible;
+    }
+
+    /**
+     * Select a kernel for every hidden and output layer of the network, calibrating unknown layer shapes.
+     * @param network network to configure
+     */
+    public synchronized void tune(NeuralNetwork network) {
+        for (int k = 1; k < network.getNumberOfLayers(); k++) {
+            int size_h = network.getLayer(k - 1).getSize();
+            int size_k = network.getLayer(k).getSize();
+            String shape = size_h + "x" + size_k;
+            if (mReproducible) {
+                shape = "reproducible." + shape;
+            }
+
+            // Stale or edited entries are calibrated again
+            ArrayList<String> candidates = getCandidates(size_h, size_k);
+            String choice = mCache.getProperty(shape);
+            if (choice == null || !candidates.contains(choice)) {
+                choice = calibrate(network, k, candidates);
+                mCache.setProperty(shape, choice);
+                mCacheChanged = true;
+            }
+
+            apply(network, k, choice);
+            mChoices.put(shape, choice);
+        }
+
+        if (mCacheChanged) {
+            save();
+        }
+    }
+
+    /**
+     * Get the choices made by this tuner, for diagnostics
+     * @return map from layer shape (e.g. "784x128", prefixed by "reproducible." in reproducible mode)
+     * to the selected kernel and block size (e.g. "TILED:64")
+     */
+    public synchronized Map<String, String> getChoices() {
+        return Collections.unmodifiableMap(new TreeMap<>(mChoices));
+    }
+
+    /**
+     * Get the kernels and block sizes that may be selected for a layer shape
+     */
+    private ArrayList<String> getCandidates(int size_h, int size_k) {
+        ArrayList<String> candidates = new ArrayList<>();
+        candidates.add(LayerKernel.SCALAR + ":1");
+        candidates.add(LayerKernel.ROW + ":1");
+        for (int blockSize : BLOCK_SIZES) {
+            if (blockSize < size_k) {
+                candidates.add(LayerKernel.TILED + ":" + blockSize);
+            }
+        }
+        if (Runtime.getRuntime().availableProcessors() > 1) {
+            for (int blockSize : BLOCK_SIZES) {
+                if (mReproducible && blockSize < size_k) {
+                    candidates.add(LayerKernel.REPRODUCIBLE + ":" + blockSize);
+                } else if (!mReproducible && blockSize < size_h) {
+                    candidates.add(LayerKernel.PARALLEL + ":" + blockSize);
+                }
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Benchmark the candidate kernels on layer k and return the fastest
+     */
+    private String calibrate(NeuralNetwork network, int k, ArrayList<String> candidates) {
+        // Calibrate on a random previous layer output
+        double[] hOutput = network.getLayer(k - 1).getOutput();
+        for (int n = 0; n < hOutput.length; n++) {
+            hOutput[n] = Math.random();
+        }
+
+        String best = candidates.get(0);
+        double bestNanos = Double.MAX_VALUE;
+        for (String candidate : candidates) {
+            apply(network, k, candidate);
+
+            for (int round = 0; round < CALIBRATION_ROUNDS; round++) {
+                long iterations = 0;
+                long start = System.nanoTime();
+                long elapsed;
+                do {
+                    network.propagateLayer(k);
+                    iterations++;
+                    elapsed = System.nanoTime() - start;
+                } while (elapsed < CALIBRATION_NANOS);
+
+                double nanos = elapsed / (double) iterations;
+                if (nanos < bestNanos) {
+                    bestNanos = nanos;
+                    best = candidate;
+                }
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Apply a candidate choice to layer k
+     */
+    private static void apply(NeuralNetwork network, int k, String choice) {
+        String[] fields = choice.split(":");
+        network.setLayerKernel(k, LayerKernel.valueOf(fields[0]), Integer.parseInt(fields[1]));
+    }
+
+    private void save() {
+        if (mCacheFile == null) {
+            return;
+        }
+
+        File dir = mCacheFile.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            return;
+        }
+
+        try (OutputStream out = new FileOutputStream(mCacheFile)) {
+            mCache.store(out, "Neural kernel tuning cache");
+            mCacheChanged = false;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2017 Javier Lancha Vázquez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.jlantxa.neural;
+
+/**
+ * Strategies available to compute the weighted sum of a layer in NeuralNetwork.propagateLayer
+ */
+public enum LayerKernel
+{
+    /**
+     * One output neuron at a time, reading the connection matrix column by column
+     */
+    SCALAR,
+
+    /**
+     * One input neuron at a time, reading the connection matrix row by row
+     */
+    ROW,
+
+    /**
+     * Row by row over blocks of output neurons, so every block of the output stays in cache.
+     * The block size is the number of output neurons per block.
+     */
+    TILED,
+
+    /**
+     * Row by row with the rows split in blocks computed in parallel, whose partial sums are added afterwards.
+     * The block size is the number of rows per task.
+     * The result depends on the block size, so it is not bit-identical to the other kernels.
+     */
+    PARALLEL,
+
+    /**
+     * Blocks of output neurons computed in parallel, each reading all rows in order.
+     * Every output neuron is accumulated in the same order as by ROW and TILED, without any reduction across
+     * tasks, so results are bit-identical to them (for finite weights) independently of the block size and
+     * the number of threads. The block size is the number of output neurons per task.
+     * Its throughput cost relative to PARALLEL on multi-core hosts has not been measured yet;
+     * NetworkTest.reproducibilityTest compares both kernels on the current host.
+     */
+    REPRODUCIBLE
+}
@@ -0,0 +1,463 @@
+/*
+ * Copyright 2017 Javier Lancha Vázquez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.jlantxa.neural;
+
+import org.jlantxa.neural.behaviour.Behaviour;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A MappedModel runs inference directly from a memory-mapped model file, so several processes serving
+ * the same model share one copy of the weights in the page cache instead of one heap copy each.
+ *
+ * One process publishes a model with publish(). Every publication writes a new data file next to a small
+ * control file and then increments the generation counter in the control file. Attached readers compare the
+ * counter with the generation they have mapped on every execute() and switch to the new data file when it
+ * changes. Data files are never modified after publication, so a reader always sees a complete model.
+ * The data file of the previous generation is kept for readers that are still switching; older ones are deleted.
+ * Connection matrices are mapped in regions of whole rows, each below the 2 GB limit of a mapping, so the
+ * size of a model is only bounded by the address space.
+ *
+ * Like NeuralNetwork, an instance is not thread-safe. Threads of the same process should attach their own
+ * instances, which map the same pages.
+ */
+public class MappedModel implements InferenceEngine
+{
+    private static final int CONTROL_MAGIC = 0x4e4d4354; // "NMCT"
+    private static final int DATA_MAGIC = 0x4e4d4150; // "NMAP"
+    private static final int VERSION = 1;
+    private static final int CONTROL_SIZE = 16;
+    private static final int GENERATION_OFFSET = 8;
+    private static final int IO_BUFFER_SIZE = 1 << 20;
+    private static final long MAX_REGION_VALUES = Integer.MAX_VALUE / 8;
+
+    private final File mFile;
+    private final MappedByteBuffer mControl;
+    private Generation mModel;
+
+    /**
+     * Generation that last failed to map. execute() does not retry it until a newer one is published.
+     */
+    private long mFailedGeneration = 0;
+    private IOException mLastFailure;
+    private long mFailures = 0;
+
+    /**
+     * Attach to a published model
+     * @param file control file of the model
+     * @throws IOException if the file cannot be mapped or no model has been published yet
+     */
+    public MappedModel(File file) throws IOException {
+        mFile = file;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < CONTROL_SIZE) {
+                throw new IOException(file + " is not a mapped model");
+            }
+            mControl = channel.map(FileChannel.MapMode.READ_ONLY, 0, CONTROL_SIZE);
+        }
+        mControl.order(ByteOrder.nativeOrder());
+
+        if (mControl.getInt(0) != CONTROL_MAGIC || mControl.getInt(4) != VERSION) {
+            throw new IOException(file + " is not a mapped model");
+        }
+
+        long generation = mControl.getLong(GENERATION_OFFSET);
+        if (generation <= 0) {
+            throw new IOException("No model has been published to " + file);
+        }
+        mModel = new Generation(getDataFile(file, generation), generation);
+    }
+
+    /**
+     * Publish a model. Attached readers switch to it on their next execution.
+     * @param file control file of the model, created if it does not exist
+     * @param networkDescriptor NetworkDescriptor object
+     * @return generation of the published model
+     * @throws IOException if the model cannot be written
+     * @throws TopologyException if the descriptor contains no layers
+     */
+    public static long publish(File file, NetworkDescriptor networkDescriptor) throws IOException, TopologyException {
+        ArrayList<NetworkDescriptor.LayerDescriptor> layers = networkDescriptor.getLayerDescriptors();
+        ArrayList<double[][]> connections = networkDescriptor.getConnectionDescriptors();
+        if (layers.isEmpty()) {
+            throw new TopologyException("Cannot publish an empty network.");
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.lock();
+            try {
+                MappedByteBuffer control = channel.map(FileChannel.MapMode.READ_WRITE, 0, CONTROL_SIZE);
+                control.order(ByteOrder.nativeOrder());
+
+                long previous = 0;
+                if (control.getInt(0) == CONTROL_MAGIC) {
+                    previous = control.getLong(GENERATION_OFFSET);
+                } else {
+                    control.putInt(0, CONTROL_MAGIC);
+                    control.putInt(4, VERSION);
+                }
+
+                long generation = previous + 1;
+                writeData(getDataFile(file, generation), generation, layers, connections);
+
+                // The data file is complete before readers can see its generation
+                control.putLong(GENERATION_OFFSET, generation);
+                control.force();
+
+                Files.deleteIfExists(getDataFile(file, generation - 2).toPath());
+                return generation;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Write a data file to a temporary file and move it atomically into place
+     */
+    private static void writeData(File dataFile, long generation,
+                                  ArrayList<NetworkDescriptor.LayerDescriptor> layers,
+                                  ArrayList<double[][]> connections) throws IOException
+    {
+        int numLayers = layers.size();
+        int dataOffset = getDataOffset(numLayers);
+        File temp = new File(dataFile.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_SIZE).order(ByteOrder.nativeOrder());
+
+            buffer.putInt(DATA_MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putLong(generation);
+            buffer.putInt(numLayers);
+            for (NetworkDescriptor.LayerDescriptor layer : layers) {
+                putInt(channel, buffer, layer.size());
+            }
+            for (NetworkDescriptor.LayerDescriptor layer : layers) {
+                putInt(channel, buffer, layer.behaviourType.ordinal());
+            }
+            while (buffer.position() < dataOffset) {
+                buffer.put((byte) 0);
+            }
+
+            for (NetworkDescriptor.LayerDescriptor layer : layers) {
+                putDoubles(channel, buffer, layer.biases);
+            }
+            for (double[][] connection : connections) {
+                for (double[] row : connection) {
+                    putDoubles(channel, buffer, row);
+                }
+            }
+            flush(channel, buffer);
+            channel.force(true);
+        }
+        Files.move(temp.toPath(), dataFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void putInt(FileChannel channel, ByteBuffer buffer, int value) throws IOException {
+        if (buffer.remaining() < 4) {
+            flush(channel, buffer);
+        }
+        buffer.putInt(value);
+    }
+
+    private static void putDoubles(FileChannel channel, ByteBuffer buffer, double[] values) throws IOException {
+        for (double value : values) {
+            if (buffer.remaining() < 8) {
+                flush(channel, buffer);
+            }
+            buffer.putDouble(value);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Header size of a data file, rounded up so the doubles are aligned
+     */
+    private static int getDataOffset(int numLayers) {
+        int header = 20 + 8 * numLayers;
+        return (header + 7) & ~7;
+    }
+
+    private static File getDataFile(File file, long generation) {
+        return new File(file.getPath() + "." + generation);
+    }
+
+    /**
+     * Switch to the latest published model if the generation has changed
+     * @return true if a new model has been mapped
+     * @throws IOException if the new model cannot be mapped. The current model remains in use.
+     */
+    public boolean refresh() throws IOException {
+        long generation = mControl.getLong(GENERATION_OFFSET);
+        if (generation == mModel.generation) {
+            return false;
+        }
+
+        try {
+            mModel = new Generation(getDataFile(mFile, generation), generation);
+        } catch (IOException e) {
+            mFailedGeneration = generation;
+            mLastFailure = e;
+            mFailures++;
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of times a new generation could not be mapped
+     * @return number of failed refreshes
+     */
+    public long getRefreshFailures() {
+        return mFailures;
+    }
+
+    /**
+     * Get the reason why the last failed refresh could not map a new generation
+     * @return exception of the last failure, or null if there was none
+     */
+    public IOException getLastRefreshFailure() {
+        return mLastFailure;
+    }
+
+    /**
+     * Execute a cycle of the latest published model. The returned vector is reused by subsequent calls.
+     * If a new generation cannot be mapped, the current one is used and the failed generation is not retried
+     * until a newer one is published; see getRefreshFailures().
+     * @param netInput Network input vector
+     * @return Network output vector
+     */
+    public double[] execute(double[] netInput) {
+        if (mControl.getLong(GENERATION_OFFSET) != mFailedGeneration) {
+            try {
+                refresh();
+            } catch (IOException e) {
+                // Keep serving the model that is already mapped
+            }
+        }
+
+        Generation model = mModel;
+        DoubleBuffer biases = model.biases;
+        int[] sizes = model.sizes;
+        double[][] outputs = model.outputs;
+
+        // Input layer
+        double[] input = outputs[0];
+        for (int n = 0; n < sizes[0]; n++) {
+            input[n] = netInput[n] - biases.get(n);
+        }
+        model.behaviours[0].activate(input, input, 0, sizes[0]);
+
+        for (int k = 1; k < sizes.length; k++) {
+            int size_h = sizes[k - 1];
+            int size_k = sizes[k];
+            double[] hOutput = outputs[k - 1];
+            double[] kOutput = outputs[k];
+            DoubleBuffer[] regions = model.weights[k - 1];
+            int rowsPerRegion = model.rowsPerRegion[k - 1];
+            int bOffset = model.biasOffsets[k];
+
+            // Weighted sum, read row by row from the mapped weights
+            Arrays.fill(kOutput, 0.0);
+            for (int hn = 0; hn < size_h; hn++) {
+                double x = hOutput[hn];
+                if (x == 0.0) {
+                    continue;
+                }
+                DoubleBuffer weights = regions[hn / rowsPerRegion];
+                int row = (hn % rowsPerRegion) * size_k;
+                for (int kn = 0; kn < size_k; kn++) {
+                    kOutput[kn] += weights.get(row + kn) * x;
+                }
+            }
+
+            for (int kn = 0; kn < size_k; kn++) {
+                kOutput[kn] -= biases.get(bOffset + kn);
+            }
+            model.behaviours[k].activate(kOutput, kOutput, 0, size_k);
+        }
+
+        return outputs[sizes.length - 1];
+    }
+
+    /**
+     * Get the generation of the model currently in use
+     * @return generation
+     */
+    public long getGeneration() {
+        return mModel.generation;
+    }
+
+    /**
+     * Get number of layers of the model currently in use
+     * @return number of layers
+     */
+    public int getNumberOfLayers() {
+        return mModel.sizes.length;
+    }
+
+    /**
+     * Get input size (number of neurons in the input layer)
+     * @return input size
+     */
+    public int getInputSize() {
+        return mModel.sizes[0];
+    }
+
+    /**
+     * Get output size (number of neurons in the output layer)
+     * @return output size
+     */
+    public int getOutputSize() {
+        return mModel.sizes[mModel.sizes.length - 1];
+    }
+
+    /**
+     * A mapped data file and the working buffers for its topology
+     */
+    private static class Generation
+    {
+        final long generation;
+        final int[] sizes;
+        final Behaviour[] behaviours;
+
+        /**
+         * Biases of all layers, layer l starting at biasOffsets[l]
+         */
+        final DoubleBuffer biases;
+        final int[] biasOffsets;
+
+        /**
+         * Connection matrix h, flattened row-major and mapped in regions of rowsPerRegion[h] rows
+         */
+        final DoubleBuffer[][] weights;
+        final int[] rowsPerRegion;
+
+        final double[][] outputs;
+
+        Generation(File dataFile, long generation) throws IOException {
+            try (FileChannel channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(20).order(ByteOrder.nativeOrder());
+                read(channel, header, 0, dataFile);
+                if (header.getInt(0) != DATA_MAGIC || header.getInt(4) != VERSION || header.getLong(8) != generation) {
+                    throw new IOException(dataFile + " is not generation " + generation + " of a mapped model");
+                }
+
+                int numLayers = header.getInt(16);
+                if (numLayers <= 0 || getDataOffset(numLayers) > channel.size()) {
+                    throw new IOException(dataFile + " is truncated");
+                }
+                ByteBuffer layers = ByteBuffer.allocate(8 * numLayers).order(ByteOrder.nativeOrder());
+                read(channel, layers, 20, dataFile);
+
+                NetworkDescriptor.BehaviourType[] types = NetworkDescriptor.BehaviourType.values();
+                this.generation = generation;
+                this.sizes = new int[numLayers];
+                this.behaviours = new Behaviour[numLayers];
+                this.biasOffsets = new int[numLayers];
+                this.weights = new DoubleBuffer[numLayers - 1][];
+                this.rowsPerRegion = new int[numLayers - 1];
+                this.outputs = new double[numLayers][];
+
+                long biasCount = 0;
+                for (int l = 0; l < numLayers; l++) {
+                    sizes[l] = layers.getInt(4 * l);
+                    int type = layers.getInt(4 * (numLayers + l));
+                    if (sizes[l] <= 0 || type < 0 || type >= types.length) {
+                        throw new IOException(dataFile + " has an invalid layer " + l);
+                    }
+                    behaviours[l] = NetworkDescriptor.createBehaviour(types[type]);
+                    outputs[l] = new double[sizes[l]];
+                    biasOffsets[l] = (int) biasCount;
+                    biasCount += sizes[l];
+                }
+                if (biasCount > MAX_REGION_VALUES) {
+                    throw new IOException(dataFile + " has too many neurons to be mapped");
+                }
+
+                long position = getDataOffset(numLayers);
+                long end = position + 8 * biasCount;
+                for (int h = 0; h < numLayers - 1; h++) {
+                    end += 8 * (long) sizes[h] * sizes[h + 1];
+                }
+                if (channel.size() < end) {
+                    throw new IOException(dataFile + " is truncated");
+                }
+
+                this.biases = map(channel, position, biasCount);
+                position += 8 * biasCount;
+
+                for (int h = 0; h < numLayers - 1; h++) {
+                    int rows = sizes[h];
+                    int size_k = sizes[h + 1];
+                    if (size_k > MAX_REGION_VALUES) {
+                        throw new IOException("A row of connection matrix " + h + " in " + dataFile +
+                                " is too large to be mapped");
+                    }
+
+                    int rowsPerRegion = (int) Math.min(rows, MAX_REGION_VALUES / size_k);
+                    int regions = (rows + rowsPerRegion - 1) / rowsPerRegion;
+                    this.rowsPerRegion[h] = rowsPerRegion;
+                    this.weights[h] = new DoubleBuffer[regions];
+                    for (int r = 0; r < regions; r++) {
+                        int regionRows = Math.min(rowsPerRegion, rows - r * rowsPerRegion);
+                        long values = (long) regionRows * size_k;
+                        weights[h][r] = map(channel, position, values);
+                        position += 8 * values;
+                    }
+                }
+            }
+        }
+
+        private static DoubleBuffer map(FileChannel channel, long position, long values) throws IOException {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, 8 * values);
+            return buffer.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        }
+
+        private static void read(FileChannel channel, ByteBuffer buffer, long position, File file)
+                throws IOException
+        {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException(file + " is truncated");
+                }
+            }
+        }
+    }
+}
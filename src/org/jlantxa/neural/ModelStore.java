@@ -0,0 +1,464 @@
+/*
+ * Copyright 2017 Javier Lancha Vázquez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.jlantxa.neural;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A ModelStore holds many network models and shares identical blocks (bias vectors and connection matrices)
+ * between them. Every block is content-hashed when a model is added; a block equal to one already stored is
+ * replaced by a reference to the stored one, e.g. the common trunk of several fine-tuned variants.
+ * New blocks are copied into the store, so the descriptors passed to add() remain owned by the caller.
+ *
+ * Shared blocks must not be modified in place. Networks returned by getNetwork() are read-only by contract;
+ * a model that is going to be modified (e.g. trained) must be obtained through getWritableNetwork(), which
+ * copies the blocks the model shares with others (copy-on-write) and withdraws all its blocks from sharing.
+ * After the modification, share() hashes the blocks of the model again.
+ *
+ * Memory accounting counts the payload of the blocks (8 bytes per weight or bias), without JVM object headers.
+ */
+public class ModelStore
+{
+    private final Map<String, Model> mModels = new LinkedHashMap<>();
+    private final HashMap<String, ArrayList<Block>> mIndex = new HashMap<>();
+
+    /**
+     * Add a model, sharing its blocks with the models already stored. Replaces any model with the same name.
+     * @param name model name
+     * @param networkDescriptor model topology and parameters
+     * @throws TopologyException if the descriptor has no layers
+     */
+    public synchronized void add(String name, NetworkDescriptor networkDescriptor) throws TopologyException {
+        ArrayList<NetworkDescriptor.LayerDescriptor> layers = networkDescriptor.getLayerDescriptors();
+        if (layers.isEmpty()) {
+            throw new TopologyException("Cannot store an empty network.");
+        }
+
+        remove(name);
+
+        Model model = new Model();
+        for (NetworkDescriptor.LayerDescriptor layer : layers) {
+            model.biases.add(intern(new Block(layer.biases)));
+            model.behaviours.add(layer.behaviourType);
+        }
+        for (double[][] connection : networkDescriptor.getConnectionDescriptors()) {
+            model.connections.add(intern(new Block(connection)));
+        }
+        mModels.put(name, model);
+    }
+
+    /**
+     * Remove a model. Blocks no longer referenced by any model are released.
+     * @param name model name
+     */
+    public synchronized void remove(String name) {
+        Model model = mModels.remove(name);
+        if (model == null) {
+            return;
+        }
+
+        for (Block block : model.biases) {
+            release(block);
+        }
+        for (Block block : model.connections) {
+            release(block);
+        }
+    }
+
+    /**
+     * Get the descriptor of a model. Its arrays are shared with other models and must not be modified.
+     * @param name model name
+     * @return network descriptor, or null if there is no such model
+     */
+    public synchronized NetworkDescriptor getDescriptor(String name) {
+        Model model = mModels.get(name);
+        return model == null ? null : model.toDescriptor();
+    }
+
+    /**
+     * Get a read-only network for a model
+     * @param name model name
+     * @return network sharing the blocks of the store, or null if there is no such model
+     */
+    public synchronized NeuralNetwork getNetwork(String name) {
+        NetworkDescriptor descriptor = getDescriptor(name);
+        return descriptor == null ? null : new NeuralNetwork(descriptor);
+    }
+
+    /**
+     * Get a network for a model that may be modified in place. Blocks shared with other models are copied
+     * first, and all blocks of the model are withdrawn from sharing until share() is called.
+     * @param name model name
+     * @return network owning all its blocks, or null if there is no such model
+     */
+    public synchronized NeuralNetwork getWritableNetwork(String name) {
+        Model model = mModels.get(name);
+        if (model == null) {
+            return null;
+        }
+
+        detach(model.biases);
+        detach(model.connections);
+        return new NeuralNetwork(model.toDescriptor());
+    }
+
+    /**
+     * Hash the blocks of a model again after it has been modified, sharing them with identical blocks
+     * of other models
+     * @param name model name
+     */
+    public synchronized void share(String name) {
+        Model model = mModels.get(name);
+        if (model == null) {
+            return;
+        }
+
+        for (int i = 0; i < model.biases.size(); i++) {
+            Block block = model.biases.get(i);
+            release(block);
+            model.biases.set(i, intern(new Block(block.data)));
+        }
+        for (int i = 0; i < model.connections.size(); i++) {
+            Block block = model.connections.get(i);
+            release(block);
+            model.connections.set(i, intern(new Block(block.data)));
+        }
+    }
+
+    /**
+     * Get the memory footprint of a model
+     * @param name model name
+     * @return footprint, or null if there is no such model
+     */
+    public synchronized Footprint getFootprint(String name) {
+        Model model = mModels.get(name);
+        if (model == null) {
+            return null;
+        }
+
+        Map<Block, Integer> modelCounts = countModels();
+        long unique = 0;
+        long shared = 0;
+        for (Block block : model.blocks()) {
+            if (modelCounts.get(block) > 1) {
+                shared += block.bytes;
+            } else {
+                unique += block.bytes;
+            }
+        }
+        return new Footprint(unique, shared);
+    }
+
+    /**
+     * Get the bytes actually held by the store, counting every shared block once
+     * @return total bytes
+     */
+    public synchronized long getTotalBytes() {
+        long total = 0;
+        for (Block block : countModels().keySet()) {
+            total += block.bytes;
+        }
+        return total;
+    }
+
+    /**
+     * Get the bytes held by blocks shared by two or more models, counting every block once
+     * @return shared bytes
+     */
+    public synchronized long getSharedBytes() {
+        long shared = 0;
+        for (Map.Entry<Block, Integer> entry : countModels().entrySet()) {
+            if (entry.getValue() > 1) {
+                shared += entry.getKey().bytes;
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Get the bytes all models would need without sharing
+     * @return sum of the footprints of all models
+     */
+    public synchronized long getUnsharedBytes() {
+        long total = 0;
+        for (Model model : mModels.values()) {
+            for (Block block : model.blocks()) {
+                total += block.bytes;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Get the names of the stored models
+     * @return model names, in insertion order
+     */
+    public synchronized Set<String> getModelNames() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(mModels.keySet()));
+    }
+
+    /**
+     * Count the distinct models using every stored block
+     * @return map from every block to the number of models using it
+     */
+    private Map<Block, Integer> countModels() {
+        IdentityHashMap<Block, Integer> counts = new IdentityHashMap<>();
+        for (Model model : mModels.values()) {
+            for (Block block : model.blocks()) {
+                Integer count = counts.get(block);
+                counts.put(block, count == null ? 1 : count + 1);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Return the stored block equal to a new block, or store the new block
+     */
+    private Block intern(Block block) {
+        ArrayList<Block> bucket = mIndex.get(block.hash);
+        if (bucket == null) {
+            bucket = new ArrayList<>();
+            mIndex.put(block.hash, bucket);
+        }
+
+        for (Block stored : bucket) {
+            if (stored.contentEquals(block)) {
+                stored.references++;
+                return stored;
+            }
+        }
+
+        // The index owns its blocks, so later changes to the caller's arrays cannot reach other models
+        Block owned = block.copy();
+        owned.references = 1;
+        owned.shareable = true;
+        bucket.add(owned);
+        return owned;
+    }
+
+    private void release(Block block) {
+        block.references--;
+        if (block.references <= 0 && block.shareable) {
+            ArrayList<Block> bucket = mIndex.get(block.hash);
+            if (bucket != null) {
+                bucket.remove(block);
+                if (bucket.isEmpty()) {
+                    mIndex.remove(block.hash);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace every shared block of a list by a private block: a copy if it is still referenced elsewhere,
+     * the block itself (withdrawn from the index) otherwise
+     */
+    private void detach(ArrayList<Block> blocks) {
+        for (int i = 0; i < blocks.size(); i++) {
+            Block block = blocks.get(i);
+            if (!block.shareable) {
+                continue;
+            }
+
+            release(block);
+            Block detached = block.references > 0 ? new Block(block.copyData()) : block;
+            detached.references = 1;
+            detached.shareable = false;
+            blocks.set(i, detached);
+        }
+    }
+
+    /**
+     * Memory footprint of a model
+     */
+    public static class Footprint
+    {
+        private final long uniqueBytes;
+        private final long sharedBytes;
+
+        Footprint(long uniqueBytes, long sharedBytes) {
+            this.uniqueBytes = uniqueBytes;
+            this.sharedBytes = sharedBytes;
+        }
+
+        /**
+         * @return bytes of the blocks used only by this model
+         */
+        public long getUniqueBytes() {
+            return uniqueBytes;
+        }
+
+        /**
+         * @return bytes of the blocks this model shares with other models
+         */
+        public long getSharedBytes() {
+            return sharedBytes;
+        }
+
+        /**
+         * @return bytes of all blocks of this model
+         */
+        public long getTotalBytes() {
+            return uniqueBytes + sharedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "total=" + getTotalBytes() + " B, unique=" + uniqueBytes + " B, shared=" + sharedBytes + " B";
+        }
+    }
+
+    /**
+     * A stored model: one bias block per layer and one block per connection matrix
+     */
+    private class Model
+    {
+        final ArrayList<Block> biases = new ArrayList<>();
+        final ArrayList<NetworkDescriptor.BehaviourType> behaviours = new ArrayList<>();
+        final ArrayList<Block> connections = new ArrayList<>();
+
+        /**
+         * Distinct blocks of this model
+         */
+        Set<Block> blocks() {
+            Set<Block> blocks = Collections.newSetFromMap(new IdentityHashMap<Block, Boolean>());
+            blocks.addAll(biases);
+            blocks.addAll(connections);
+            return blocks;
+        }
+
+        NetworkDescriptor toDescriptor() {
+            NetworkDescriptor descriptor = new NetworkDescriptor();
+            try {
+                descriptor.addLayer((double[]) biases.get(0).data, behaviours.get(0), null);
+                for (int l = 1; l < biases.size(); l++) {
+                    descriptor.addLayer((double[]) biases.get(l).data, behaviours.get(l),
+                            (double[][]) connections.get(l - 1).data);
+                }
+            } catch (TopologyException e) {
+                // The topology was checked when the model was added
+                e.printStackTrace();
+            }
+            return descriptor;
+        }
+    }
+
+    /**
+     * A bias vector (double[]) or connection matrix (double[][]) identified by its content hash
+     */
+    private static class Block
+    {
+        final Object data;
+        final String hash;
+        final long bytes;
+        int references;
+        boolean shareable;
+
+        /**
+         * @param data bias vector (double[]) or connection matrix (double[][])
+         */
+        Block(Object data) {
+            this(data instanceof double[] ? new double[][] {(double[]) data} : (double[][]) data,
+                    data instanceof double[]);
+        }
+
+        private Block(double[][] rows, boolean vector) {
+            this.data = vector ? rows[0] : rows;
+            long count = 0;
+            for (double[] row : rows) {
+                count += row.length;
+            }
+            this.bytes = 8L * count;
+            this.hash = hash(rows, vector ? 'v' : 'm');
+        }
+
+        private Block(Object data, String hash, long bytes) {
+            this.data = data;
+            this.hash = hash;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return block with a deep copy of the data, without hashing it again
+         */
+        Block copy() {
+            return new Block(copyData(), hash, bytes);
+        }
+
+        Object copyData() {
+            if (data instanceof double[]) {
+                return ((double[]) data).clone();
+            }
+            double[][] matrix = (double[][]) data;
+            double[][] copy = new double[matrix.length][];
+            for (int r = 0; r < matrix.length; r++) {
+                copy[r] = matrix[r].clone();
+            }
+            return copy;
+        }
+
+        boolean contentEquals(Block other) {
+            if (data instanceof double[] && other.data instanceof double[]) {
+                return Arrays.equals((double[]) data, (double[]) other.data);
+            }
+            if (data instanceof double[][] && other.data instanceof double[][]) {
+                return Arrays.deepEquals((double[][]) data, (double[][]) other.data);
+            }
+            return false;
+        }
+
+        private static String hash(double[][] rows, char kind) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                ByteBuffer buffer = ByteBuffer.allocate(8 * 512);
+                digest.update((byte) kind);
+                for (double[] row : rows) {
+                    buffer.clear();
+                    buffer.putInt(row.length);
+                    for (double value : row) {
+                        if (buffer.remaining() < 8) {
+                            digest.update(buffer.array(), 0, buffer.position());
+                            buffer.clear();
+                        }
+                        buffer.putLong(Double.doubleToLongBits(value));
+                    }
+                    digest.update(buffer.array(), 0, buffer.position());
+                }
+
+                StringBuilder hex = new StringBuilder();
+                for (byte b : digest.digest()) {
+                    hex.append(String.format("%02x", b));
+                }
+                return hex.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is not available", e);
+            }
+        }
+    }
+}
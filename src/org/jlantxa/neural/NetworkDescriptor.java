@@ -18,7 +18,11 @@ package org.jlantxa.neural;
 
 import org.jlantxa.neural.behaviour.Behaviour;
 import org.jlantxa.neural.behaviour.IdentityFunction;
+import org.jlantxa.neural.behaviour.LeakyReluFunction;
 import org.jlantxa.neural.behaviour.LogisticFunction;
+import org.jlantxa.neural.behaviour.ReluFunction;
+import org.jlantxa.neural.behaviour.SoftmaxFunction;
+import org.jlantxa.neural.behaviour.TanhFunction;
 
 import java.util.ArrayList;
 
@@ -32,7 +36,11 @@ public class NetworkDescriptor
      */
     enum BehaviourType {
         IDENTITY,
-        LOGISTIC
+        LOGISTIC,
+        RELU,
+        LEAKY_RELU,
+        TANH,
+        SOFTMAX
     }
 
     final ArrayList<LayerDescriptor> mLayers;
@@ -137,12 +145,48 @@ public class NetworkDescriptor
             return NetworkDescriptor.BehaviourType.IDENTITY;
         } else if (behaviour instanceof LogisticFunction) {
             return NetworkDescriptor.BehaviourType.LOGISTIC;
+        } else if (behaviour instanceof ReluFunction) {
+            return NetworkDescriptor.BehaviourType.RELU;
+        } else if (behaviour instanceof LeakyReluFunction) {
+            return NetworkDescriptor.BehaviourType.LEAKY_RELU;
+        } else if (behaviour instanceof TanhFunction) {
+            return NetworkDescriptor.BehaviourType.TANH;
+        } else if (behaviour instanceof SoftmaxFunction) {
+            return NetworkDescriptor.BehaviourType.SOFTMAX;
         }
 
         // Return LOGISTIC as default
         return NetworkDescriptor.BehaviourType.LOGISTIC;
     }
 
+    /**
+     * Create a Behaviour instance from a behaviour descriptor constant
+     * @param behaviourType A constant describing the type of behaviour
+     * @return A new instance of the corresponding implementation of the Behaviour interface
+     */
+    static Behaviour createBehaviour(NetworkDescriptor.BehaviourType behaviourType) {
+        switch (behaviourType) {
+            case IDENTITY:
+                return new IdentityFunction();
+
+            case RELU:
+                return new ReluFunction();
+
+            case LEAKY_RELU:
+                return new LeakyReluFunction();
+
+            case TANH:
+                return new TanhFunction();
+
+            case SOFTMAX:
+                return new SoftmaxFunction();
+
+            case LOGISTIC:
+            default:
+                return new LogisticFunction();
+        }
+    }
+
     /**
      * A LayerDescriptor is a simple representation of a network layer. It contains the biases of all neurons
      * and the behaviour type of the layer.
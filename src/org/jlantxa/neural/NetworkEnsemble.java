@@ -0,0 +1,342 @@
+/*
+ * Copyright 2017 Javier Lancha Vázquez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.jlantxa.neural;
+
+import org.jlantxa.neural.behaviour.Behaviour;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A NetworkEnsemble evaluates several networks of identical topology on the same input.
+ * The connection matrices of all members are stacked layer by layer, so every layer of the whole
+ * ensemble is computed by a single wide kernel instead of one execute() call per member.
+ * The member outputs are combined by a Reduction.
+ */
+public class NetworkEnsemble
+{
+    /**
+     * A Reduction combines the outputs of all members into the output of the ensemble
+     */
+    public interface Reduction
+    {
+        /**
+         * Reduce the member outputs
+         * @param memberOutputs outputs of all members, stored consecutively (member m starts at m * outputSize)
+         * @param members number of members
+         * @param outputSize size of the output vector of every member
+         * @param result output vector of the ensemble
+         */
+        void reduce(double[] memberOutputs, int members, int outputSize, double[] result);
+    }
+
+    /**
+     * Average of the member outputs
+     */
+    public static final Reduction MEAN = new Reduction() {
+        @Override
+        public void reduce(double[] memberOutputs, int members, int outputSize, double[] result) {
+            Arrays.fill(result, 0.0);
+            for (int m = 0; m < members; m++) {
+                int offset = m * outputSize;
+                for (int n = 0; n < outputSize; n++) {
+                    result[n] += memberOutputs[offset + n];
+                }
+            }
+
+            for (int n = 0; n < outputSize; n++) {
+                result[n] /= members;
+            }
+        }
+    };
+
+    /**
+     * Majority vote. Every member votes for its highest output; the result holds the fraction
+     * of votes received by every output neuron.
+     */
+    public static final Reduction VOTE = new Reduction() {
+        @Override
+        public void reduce(double[] memberOutputs, int members, int outputSize, double[] result) {
+            Arrays.fill(result, 0.0);
+            for (int m = 0; m < members; m++) {
+                int offset = m * outputSize;
+                int winner = 0;
+                for (int n = 1; n < outputSize; n++) {
+                    if (memberOutputs[offset + n] > memberOutputs[offset + winner]) {
+                        winner = n;
+                    }
+                }
+                result[winner] += 1.0;
+            }
+
+            for (int n = 0; n < outputSize; n++) {
+                result[n] /= members;
+            }
+        }
+    };
+
+    private final int mMembers;
+    private final int[] mSizes;
+    private final Behaviour[] mBehaviours;
+    private final Reduction mReduction;
+
+    /**
+     * Biases of every layer, stacked by member: bias n of member m is at m * size + n
+     */
+    private final double[][] mBiases;
+
+    /**
+     * Stacked connection matrices, flattened row-major. The connection matrix before layer k has index h = k-1.
+     * If the input layer is shared, the first matrix is stored as a single wide matrix
+     * [size_h][members * size_k] so the shared input is multiplied against all members at once.
+     * Otherwise (and for all deeper layers), weight (hn, kn) of member m is at (m * size_h + hn) * size_k + kn.
+     */
+    private final double[][] mWeights;
+
+    /**
+     * True when all members share the biases of the input layer, hence the same input layer output
+     */
+    private final boolean mSharedInput;
+
+    /**
+     * Working buffers. Outputs of every layer, stacked by member.
+     */
+    private final double[][] mOutputs;
+    private final double[] mResult;
+
+    /**
+     * Create an ensemble from a list of network descriptors
+     * @param descriptors Network descriptors of the members. All must share the same topology.
+     * @param reduction Reduction used to combine the member outputs
+     * @throws TopologyException Throws TopologyException when the list is empty or the members
+     * do not share the same layer sizes and behaviours.
+     */
+    public NetworkEnsemble(List<NetworkDescriptor> descriptors, Reduction reduction) throws TopologyException
+    {
+        if (descriptors == null || descriptors.isEmpty() || reduction == null) {
+            throw new TopologyException("An ensemble needs at least one member and a reduction.");
+        }
+
+        mMembers = descriptors.size();
+        mReduction = reduction;
+
+        ArrayList<NetworkDescriptor.LayerDescriptor> reference = descriptors.get(0).getLayerDescriptors();
+        int numLayers = reference.size();
+        if (numLayers <= 0) {
+            throw new TopologyException("The ensemble members have no layers.");
+        }
+
+        mSizes = new int[numLayers];
+        mBehaviours = new Behaviour[numLayers];
+        for (int l = 0; l < numLayers; l++) {
+            mSizes[l] = reference.get(l).size();
+            mBehaviours[l] = NetworkDescriptor.createBehaviour(reference.get(l).behaviourType);
+        }
+
+        // Check topology of every member
+        for (int m = 1; m < mMembers; m++) {
+            ArrayList<NetworkDescriptor.LayerDescriptor> layers = descriptors.get(m).getLayerDescriptors();
+            if (layers.size() != numLayers) {
+                throw new TopologyException("Ensemble member " + m + " has " + layers.size() +
+                        " layers, expected " + numLayers);
+            }
+
+            for (int l = 0; l < numLayers; l++) {
+                if (layers.get(l).size() != mSizes[l] ||
+                        layers.get(l).behaviourType != reference.get(l).behaviourType) {
+                    throw new TopologyException("Layer " + l + " of ensemble member " + m +
+                            " does not match the topology of the ensemble.");
+                }
+            }
+        }
+
+        // Stack biases
+        boolean sharedInput = true;
+        mBiases = new double[numLayers][];
+        mOutputs = new double[numLayers][];
+        for (int l = 0; l < numLayers; l++) {
+            mBiases[l] = new double[mMembers * mSizes[l]];
+            mOutputs[l] = new double[mMembers * mSizes[l]];
+            for (int m = 0; m < mMembers; m++) {
+                double[] biases = descriptors.get(m).getLayerDescriptors().get(l).biases;
+                System.arraycopy(biases, 0, mBiases[l], m * mSizes[l], mSizes[l]);
+                if (l == 0 && !Arrays.equals(biases, reference.get(0).biases)) {
+                    sharedInput = false;
+                }
+            }
+        }
+        mSharedInput = sharedInput;
+
+        // Stack connection matrices
+        mWeights = new double[numLayers - 1][];
+        for (int h = 0; h < numLayers - 1; h++) {
+            int size_h = mSizes[h];
+            int size_k = mSizes[h + 1];
+            double[] weights = new double[mMembers * size_h * size_k];
+
+            for (int m = 0; m < mMembers; m++) {
+                double[][] connection = descriptors.get(m).getConnectionDescriptors().get(h);
+                for (int hn = 0; hn < size_h; hn++) {
+                    int offset = (h == 0 && mSharedInput)
+                            ? hn * mMembers * size_k + m * size_k
+                            : (m * size_h + hn) * size_k;
+                    System.arraycopy(connection[hn], 0, weights, offset, size_k);
+                }
+            }
+
+            mWeights[h] = weights;
+        }
+
+        mResult = new double[mSizes[numLayers - 1]];
+    }
+
+    /**
+     * Execute a cycle of every member and reduce their outputs.
+     * The returned vector is reused by subsequent calls.
+     * @param netInput Network input vector, shared by all members
+     * @return Ensemble output vector
+     */
+    public double[] execute(double[] netInput) {
+        int numLayers = mSizes.length;
+
+        // Input layer
+        int size_0 = mSizes[0];
+        int inputMembers = mSharedInput ? 1 : mMembers;
+        for (int m = 0; m < inputMembers; m++) {
+            int offset = m * size_0;
+            for (int n = 0; n < size_0; n++) {
+                mOutputs[0][offset + n] = netInput[n] - mBiases[0][offset + n];
+            }
+        }
+        activate(0, inputMembers);
+
+        // A single-layer ensemble has no later layer to fan the shared input out, so the reduction
+        // needs member 0's output in every slot
+        if (numLayers == 1) {
+            for (int m = inputMembers; m < mMembers; m++) {
+                System.arraycopy(mOutputs[0], 0, mOutputs[0], m * size_0, size_0);
+            }
+        }
+
+        for (int k = 1; k < numLayers; k++) {
+            propagateLayer(k);
+        }
+
+        mReduction.reduce(mOutputs[numLayers - 1], mMembers, mSizes[numLayers - 1], mResult);
+        return mResult;
+    }
+
+    /**
+     * Propagate the output of layer k-1 of all members through layer k
+     * @param k layer index
+     */
+    private void propagateLayer(int k) {
+        int h = k - 1;
+        int size_h = mSizes[h];
+        int size_k = mSizes[k];
+        double[] hOutput = mOutputs[h];
+        double[] kOutput = mOutputs[k];
+        double[] weights = mWeights[h];
+
+        // Weighted sum, accumulated in the output buffer
+        Arrays.fill(kOutput, 0.0);
+        if (h == 0 && mSharedInput) {
+            // One wide row for all members per input neuron
+            int width = mMembers * size_k;
+            for (int hn = 0; hn < size_h; hn++) {
+                double x = hOutput[hn];
+                if (x == 0.0) {
+                    continue;
+                }
+                int row = hn * width;
+                for (int j = 0; j < width; j++) {
+                    kOutput[j] += weights[row + j] * x;
+                }
+            }
+        } else {
+            for (int m = 0; m < mMembers; m++) {
+                int kOffset = m * size_k;
+                for (int hn = 0; hn < size_h; hn++) {
+                    double x = hOutput[m * size_h + hn];
+                    if (x == 0.0) {
+                        continue;
+                    }
+                    int row = (m * size_h + hn) * size_k;
+                    for (int kn = 0; kn < size_k; kn++) {
+                        kOutput[kOffset + kn] += weights[row + kn] * x;
+                    }
+                }
+            }
+        }
+
+        double[] biases = mBiases[k];
+        for (int j = 0; j < kOutput.length; j++) {
+            kOutput[j] -= biases[j];
+        }
+        activate(k, mMembers);
+    }
+
+    /**
+     * Apply the activation function of layer l in place to the first members of the layer
+     * @param l layer index
+     * @param members number of members to activate
+     */
+    private void activate(int l, int members) {
+        int size = mSizes[l];
+        double[] values = mOutputs[l];
+        Behaviour behaviour = mBehaviours[l];
+
+        for (int m = 0; m < members; m++) {
+            behaviour.activate(values, values, m * size, size);
+        }
+    }
+
+    /**
+     * Get the output vector of member m after the last execution
+     * @param m member index
+     * @return copy of the output vector of member m
+     */
+    public double[] getMemberOutput(int m) {
+        int outputSize = getOutputSize();
+        return Arrays.copyOfRange(mOutputs[mSizes.length - 1], m * outputSize, (m + 1) * outputSize);
+    }
+
+    /**
+     * Get number of members
+     * @return number of members
+     */
+    public int getNumberOfMembers() {
+        return mMembers;
+    }
+
+    /**
+     * Get input size (number of neurons in the input layer)
+     * @return input size
+     */
+    public int getInputSize() {
+        return mSizes[0];
+    }
+
+    /**
+     * Get output size (number of neurons in the output layer)
+     * @return output size
+     */
+    public int getOutputSize() {
+        return mSizes[mSizes.length - 1];
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2017 Javier Lancha Vázquez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.jlantxa.neural;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A NetworkPruner removes whole hidden neurons from the network of a NetworkTrainer.
+ * A pruned neuron is masked: its incoming weights, its bias and its outgoing weights are zeroed and kept at
+ * zero after every training step through a ParameterConstraint, so the remaining neurons can adapt during
+ * training. Since a masked neuron contributes nothing to the next layer, compact() can then drop it from
+ * the biases and from both adjacent connection matrices without changing the outputs, giving a smaller
+ * network that runs faster with the ordinary dense kernels.
+ *
+ * Neurons are ranked within their layer, and every hidden layer is pruned by the same fraction.
+ * Layers that are not element-wise, such as softmax, are never pruned, since removing a neuron would change
+ * the outputs of the others.
+ */
+public class NetworkPruner
+{
+    /**
+     * Neuron ranking criteria
+     */
+    public enum Criterion {
+        /**
+         * Product of the L2 norms of the incoming and outgoing weights of a neuron
+         */
+        WEIGHT_NORM,
+
+        /**
+         * Mean absolute output of a neuron over a set of samples, times the L2 norm of its outgoing weights
+         */
+        ACTIVATION
+    }
+
+    private final NetworkTrainer mTrainer;
+    private final NeuralNetwork mNetwork;
+    private final Criterion mCriterion;
+    private final int mNumLayers;
+    private final int[] mSizes;
+
+    /**
+     * Pruned neurons of every layer. Only hidden layers are ever pruned.
+     */
+    private final boolean[][] mPruned;
+
+    /**
+     * Create a pruner and install its mask on the trainer
+     * @param trainer trainer of the network to prune
+     * @param criterion neuron ranking criterion
+     */
+    public NetworkPruner(NetworkTrainer trainer, Criterion criterion) {
+        mTrainer = trainer;
+        mNetwork = trainer.getNetwork();
+        mCriterion = criterion;
+        mNumLayers = mNetwork.getNumberOfLayers();
+        mSizes = new int[mNumLayers];
+        mPruned = new boolean[mNumLayers][];
+        for (int l = 0; l < mNumLayers; l++) {
+            mSizes[l] = mNetwork.getLayer(l).getSize();
+            mPruned[l] = new boolean[mSizes[l]];
+        }
+
+        trainer.setParameterConstraint(new NetworkTrainer.ParameterConstraint() {
+            @Override
+            public void apply(double[] parameters) {
+                applyMask(parameters);
+            }
+        });
+    }
+
+    /**
+     * Prune gradually while training, then fine-tune.
+     * The pruned fraction follows a cubic schedule over the rounds, removing many neurons early,
+     * while there is still plenty of training left to recover, and few at the end.
+     * @param inputs training input vectors, also used to rank neurons by activation
+     * @param targets training target vectors
+     * @param fraction final fraction of the neurons of every hidden layer to prune, in [0, 1)
+     * @param rounds number of pruning rounds
+     * @param epochsPerRound training epochs after every round
+     * @param fineTuneEpochs training epochs after the last round
+     * @param batchSize number of samples per step
+     * @return mean loss of the last epoch
+     */
+    public double prune(double[][] inputs, double[][] targets, double fraction, int rounds,
+                        int epochsPerRound, int fineTuneEpochs, int batchSize) {
+        double loss = 0.0;
+        for (int round = 1; round <= rounds; round++) {
+            double remaining = 1.0 - round / (double) rounds;
+            pruneTo(fraction * (1.0 - remaining * remaining * remaining), inputs);
+            loss = mTrainer.train(inputs, targets, batchSize, epochsPerRound);
+        }
+
+        if (fineTuneEpochs > 0) {
+            loss = mTrainer.train(inputs, targets, batchSize, fineTuneEpochs);
+        }
+        return loss;
+    }
+
+    /**
+     * Prune the lowest-ranked neurons of every hidden layer until the given fraction of it is pruned.
+     * At least one neuron of every layer is kept. Neurons are never restored.
+     * @param fraction fraction of the neurons of every hidden layer to prune
+     * @param samples input vectors for the ACTIVATION criterion, may be null for WEIGHT_NORM
+     */
+    public void pruneTo(double fraction, double[][] samples) {
+        double[] parameters = mTrainer.getParameters();
+        double[][] activations = mCriterion == Criterion.ACTIVATION ? getMeanActivations(samples) : null;
+
+        for (int k = 1; k < mNumLayers - 1; k++) {
+            if (!mNetwork.getLayer(k).getBehaviour().isElementWise()) {
+                continue;
+            }
+
+            int target = Math.min((int) (fraction * mSizes[k]), mSizes[k] - 1);
+            int pruned = mSizes[k] - getRemainingNeurons(k);
+            if (target <= pruned) {
+                continue;
+            }
+
+            final double[] scores = new double[mSizes[k]];
+            Integer[] order = new Integer[mSizes[k]];
+            for (int n = 0; n < mSizes[k]; n++) {
+                double outgoing = getOutgoingNorm(parameters, k, n);
+                scores[n] = activations != null
+                        ? activations[k][n] * outgoing
+                        : getIncomingNorm(parameters, k, n) * outgoing;
+                order[n] = n;
+            }
+
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Double.compare(scores[a], scores[b]);
+                }
+            });
+
+            for (int i = 0; i < mSizes[k] && pruned < target; i++) {
+                int n = order[i];
+                if (!mPruned[k][n]) {
+                    mPruned[k][n] = true;
+                    pruned++;
+                }
+            }
+        }
+
+        applyMask(parameters);
+        mTrainer.scatterParameters();
+    }
+
+    /**
+     * Mean absolute output of every neuron over a set of samples
+     */
+    private double[][] getMeanActivations(double[][] samples) {
+        if (samples == null || samples.length == 0) {
+            throw new IllegalArgumentException("Ranking neurons by activation needs sample inputs.");
+        }
+
+        double[][] activations = new double[mNumLayers][];
+        for (int l = 0; l < mNumLayers; l++) {
+            activations[l] = new double[mSizes[l]];
+        }
+
+        for (double[] sample : samples) {
+            mNetwork.execute(sample);
+            for (int l = 1; l < mNumLayers - 1; l++) {
+                double[] output = mNetwork.getLayer(l).getOutput();
+                for (int n = 0; n < mSizes[l]; n++) {
+                    activations[l][n] += Math.abs(output[n]);
+                }
+            }
+        }
+
+        for (double[] layer : activations) {
+            for (int n = 0; n < layer.length; n++) {
+                layer[n] /= samples.length;
+            }
+        }
+        return activations;
+    }
+
+    private double getIncomingNorm(double[] parameters, int k, int n) {
+        int offset = mTrainer.getWeightOffset(k - 1) + n;
+        double sum = 0.0;
+        for (int hn = 0; hn < mSizes[k - 1]; hn++) {
+            double w = parameters[offset + hn * mSizes[k]];
+            sum += w * w;
+        }
+        return Math.sqrt(sum);
+    }
+
+    private double getOutgoingNorm(double[] parameters, int k, int n) {
+        int offset = mTrainer.getWeightOffset(k) + n * mSizes[k + 1];
+        double sum = 0.0;
+        for (int j = 0; j < mSizes[k + 1]; j++) {
+            double w = parameters[offset + j];
+            sum += w * w;
+        }
+        return Math.sqrt(sum);
+    }
+
+    /**
+     * Zero the incoming weights, the bias and the outgoing weights of every pruned neuron
+     */
+    private void applyMask(double[] parameters) {
+        for (int k = 1; k < mNumLayers - 1; k++) {
+            int size_h = mSizes[k - 1];
+            int size_k = mSizes[k];
+            int size_j = mSizes[k + 1];
+            int incoming = mTrainer.getWeightOffset(k - 1);
+            int outgoing = mTrainer.getWeightOffset(k);
+            int biases = mTrainer.getBiasOffset(k);
+
+            for (int n = 0; n < size_k; n++) {
+                if (!mPruned[k][n]) {
+                    continue;
+                }
+
+                for (int hn = 0; hn < size_h; hn++) {
+                    parameters[incoming + hn * size_k + n] = 0.0;
+                }
+                parameters[biases + n] = 0.0;
+                Arrays.fill(parameters, outgoing + n * size_j, outgoing + (n + 1) * size_j, 0.0);
+            }
+        }
+    }
+
+    /**
+     * Check whether a neuron has been pruned
+     * @param l layer index
+     * @param n neuron index
+     * @return true if the neuron is pruned
+     */
+    public boolean isPruned(int l, int n) {
+        return mPruned[l][n];
+    }
+
+    /**
+     * Get the number of neurons of a layer that have not been pruned
+     * @param l layer index
+     * @return number of remaining neurons
+     */
+    public int getRemainingNeurons(int l) {
+        int remaining = 0;
+        for (boolean pruned : mPruned[l]) {
+            if (!pruned) {
+                remaining++;
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * Export the network without its pruned neurons. The compacted network computes the same outputs.
+     * @return NetworkDescriptor of the compacted network
+     * @throws TopologyException TopologyException
+     */
+    public NetworkDescriptor compact() throws TopologyException {
+        int[][] kept = new int[mNumLayers][];
+        for (int l = 0; l < mNumLayers; l++) {
+            kept[l] = new int[getRemainingNeurons(l)];
+            int i = 0;
+            for (int n = 0; n < mSizes[l]; n++) {
+                if (!mPruned[l][n]) {
+                    kept[l][i++] = n;
+                }
+            }
+        }
+
+        NetworkDescriptor descriptor = new NetworkDescriptor();
+        for (int l = 0; l < mNumLayers; l++) {
+            NeuralNetwork.Layer layer = mNetwork.getLayer(l);
+            double[] biases = new double[kept[l].length];
+            for (int i = 0; i < kept[l].length; i++) {
+                biases[i] = layer.getBias(kept[l][i]);
+            }
+
+            double[][] connection = null;
+            if (l > 0) {
+                double[][] original = mNetwork.getConnection(l - 1);
+                connection = new double[kept[l - 1].length][kept[l].length];
+                for (int i = 0; i < kept[l - 1].length; i++) {
+                    double[] row = original[kept[l - 1][i]];
+                    for (int j = 0; j < kept[l].length; j++) {
+                        connection[i][j] = row[kept[l][j]];
+                    }
+                }
+            }
+
+            descriptor.addLayer(biases, NetworkDescriptor.parseBehaviourType(layer.getBehaviour()), connection);
+        }
+        return descriptor;
+    }
+}
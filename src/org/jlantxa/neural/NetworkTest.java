@@ -22,6 +22,7 @@ import javax.xml.parsers.ParserConfigurationException;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * This class contains simple test functions and utilities for testing
@@ -42,31 +43,7 @@ public abstract class NetworkTest
 
         try {
             nanoTimer = System.nanoTime();
-            NetworkDescriptor netDescriptor = new NetworkDescriptor();
-            for (int l = 0; l < layers.length; l++) {
-                double[] biases = new double[layers[l]];
-
-                for (int b = 0; b < biases.length; b++) {
-                    biases[b] = Math.random();
-                }
-
-
-                if (l == 0) {
-                    netDescriptor.addLayer(biases, NetworkDescriptor.BehaviourType.IDENTITY, null);
-                } else {
-                    double[][] connections = new double[layers[l - 1]][layers[l]];
-
-                    for (int h = 0; h < connections.length; h++) {
-                        for (int k = 0; k < connections[0].length; k++) {
-                            connections[h][k] = Math.random();
-                        }
-                    }
-
-                    netDescriptor.addLayer(biases, NetworkDescriptor.BehaviourType.LOGISTIC, connections);
-                }
-            }
-
-            NeuralNetwork net = new NeuralNetwork(netDescriptor);
+            NeuralNetwork net = new NeuralNetwork(createRandomDescriptor(layers, 0.0));
 
             createNanos = System.nanoTime() - nanoTimer;
             System.out.println("Create [ns] = " + createNanos);
@@ -101,6 +78,89 @@ public abstract class NetworkTest
         }
     }
 
+    /**
+     * Compare the throughput of the sequential, PARALLEL and REPRODUCIBLE kernels on an arbitrary neural network,
+     * and check which of them reproduce the output of the sequential kernel bit for bit
+     * @param nTests Number of executions per kernel
+     * @param layers Sizes of layers
+     * @param blockSize Block size of the parallel kernels
+     */
+    public static void reproducibilityTest(int nTests, int[] layers, int blockSize) {
+        try {
+            // Centred weights, so the sums cancel and rounding differences are not hidden by saturation
+            NeuralNetwork net = new NeuralNetwork(createRandomDescriptor(layers, 0.5));
+            double[] input = new double[layers[0]];
+            for (int i = 0; i < input.length; i++) {
+                input[i] = Math.random();
+            }
+
+            LayerKernel[] kernels = {LayerKernel.ROW, LayerKernel.PARALLEL, LayerKernel.REPRODUCIBLE};
+            double[] reference = null;
+            for (LayerKernel kernel : kernels) {
+                for (int k = 1; k < layers.length; k++) {
+                    net.setLayerKernel(k, kernel, blockSize);
+                }
+
+                // Warm up
+                for (int t = 0; t < nTests; t++) {
+                    net.execute(input);
+                }
+
+                long nanoTimer = System.nanoTime();
+                for (int t = 0; t < nTests; t++) {
+                    net.execute(input);
+                }
+                long executeAvg = (System.nanoTime() - nanoTimer) / nTests;
+
+                double[] output = net.execute(input).clone();
+                if (reference == null) {
+                    reference = output;
+                }
+
+                double throughput = 1.0 / (executeAvg / (1.0 * NSEC_TO_SEC));
+                System.out.println(kernel + ": " + throughput + " cycles per second, " +
+                        (Arrays.equals(reference, output) ? "identical to " : "differs from ") + kernels[0]);
+            }
+        } catch (TopologyException te) {
+            te.printStackTrace();
+        }
+    }
+
+    /**
+     * Create a network descriptor with random biases in [0, 1), random weights in [-weightOffset, 1-weightOffset),
+     * an identity input layer and logistic hidden and output layers
+     * @param layers Sizes of layers
+     * @param weightOffset Offset subtracted from the random weights
+     * @return NetworkDescriptor of the network
+     * @throws TopologyException TopologyException
+     */
+    private static NetworkDescriptor createRandomDescriptor(int[] layers, double weightOffset) throws TopologyException {
+        NetworkDescriptor netDescriptor = new NetworkDescriptor();
+        for (int l = 0; l < layers.length; l++) {
+            double[] biases = new double[layers[l]];
+
+            for (int b = 0; b < biases.length; b++) {
+                biases[b] = Math.random();
+            }
+
+
+            if (l == 0) {
+                netDescriptor.addLayer(biases, NetworkDescriptor.BehaviourType.IDENTITY, null);
+            } else {
+                double[][] connections = new double[layers[l - 1]][layers[l]];
+
+                for (int h = 0; h < connections.length; h++) {
+                    for (int k = 0; k < connections[0].length; k++) {
+                        connections[h][k] = Math.random() - weightOffset;
+                    }
+                }
+
+                netDescriptor.addLayer(biases, NetworkDescriptor.BehaviourType.LOGISTIC, connections);
+            }
+        }
+        return netDescriptor;
+    }
+
     /**
      * Execute a cycle of the neural network described in an XML file
      * @param xmlFile XML file containing the network description
@@ -136,6 +196,40 @@ public abstract class NetworkTest
         return output;
     }
 
+    /**
+     * Measure the time from reading an XML file to the end of the first inference, with NetworkXmlParser and
+     * with a FastNetworkLoader in eager and lazy mode
+     * @param xmlFile XML file containing the network description
+     * @param threads number of parser threads of the FastNetworkLoader
+     * @throws TopologyException  TopologyException
+     * @throws ParserConfigurationException ParserConfigurationException
+     * @throws SAXException SAXException
+     * @throws IOException IOException
+     */
+    public static void startupTest(File xmlFile, int threads)
+            throws TopologyException, IOException, SAXException, ParserConfigurationException
+    {
+        FastNetworkLoader loader = new FastNetworkLoader(threads);
+        long nanoTimer;
+
+        nanoTimer = System.nanoTime();
+        NeuralNetwork network = NetworkXmlParser.getNetwork(xmlFile);
+        double[] input = new double[network.getInputSize()];
+        network.execute(input);
+        System.out.println("Time to first inference [ns] (NetworkXmlParser) = " + (System.nanoTime() - nanoTimer));
+
+        nanoTimer = System.nanoTime();
+        loader.getNetwork(xmlFile, false).execute(input);
+        System.out.println("Time to first inference [ns] (FastNetworkLoader) = " + (System.nanoTime() - nanoTimer));
+
+        nanoTimer = System.nanoTime();
+        network = loader.getNetwork(xmlFile, true);
+        long returnNanos = System.nanoTime() - nanoTimer;
+        network.execute(input);
+        System.out.println("Time to first inference [ns] (FastNetworkLoader, lazy) = " +
+                (System.nanoTime() - nanoTimer) + ", returned after " + returnNanos);
+    }
+
     public static void printVector(double[] vector, String msg) {
         System.out.println(msg);
         for (double element : vector) {
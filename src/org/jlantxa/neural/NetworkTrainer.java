@@ -16,7 +16,535 @@
 
 package org.jlantxa.neural;
 
-class NetworkTrainer
+import org.jlantxa.neural.behaviour.Behaviour;
+import org.jlantxa.neural.optimizer.Optimizer;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * A NetworkTrainer trains a NeuralNetwork with mini-batch backpropagation on the squared error.
+ * The trainable parameters (connection matrices and biases of the hidden and output layers) are kept
+ * in one contiguous flat vector, together with a gradient vector of the same layout, so the Optimizer
+ * updates all of them in a single pass. The segment of layer k holds the connection matrix before
+ * layer k, row-major, followed by the biases of layer k. The biases of the input layer are not trained.
+ * After every step the parameters are copied back into the connection matrices and biases of the network.
+ *
+ * By default the outputs and pre-activations of every layer are kept for the whole batch during the backward
+ * pass. For deep networks and large batches, setCheckpointInterval() keeps them only for every n-th layer
+ * (the checkpoints) plus one segment of n-1 layers, which is recomputed from the previous checkpoint when
+ * the backward pass reaches it. With n = sqrt(depth) the activation memory falls from O(depth) to
+ * O(sqrt(depth)) layers, at the cost of at most one extra forward pass per step (about a third more compute,
+ * since the backward pass costs about twice the forward pass).
+ */
+public class NetworkTrainer
 {
-    
+    /**
+     * A ParameterConstraint is applied to the flat parameter vector after every optimizer step,
+     * before the parameters are copied back into the network
+     */
+    public interface ParameterConstraint
+    {
+        void apply(double[] parameters);
+    }
+
+    private final NeuralNetwork mNetwork;
+    private final Optimizer mOptimizer;
+
+    private final int mNumLayers;
+    private final int[] mSizes;
+    private final Behaviour[] mBehaviours;
+    private final double[] mInputBiases;
+
+    /**
+     * Flat parameter and gradient vectors.
+     * Weights of connection h start at mWeightOffsets[h], biases of layer k at mBiasOffsets[k].
+     */
+    private final double[] mParameters;
+    private final double[] mGradients;
+    private final int[] mWeightOffsets;
+    private final int[] mBiasOffsets;
+
+    /**
+     * Checkpoint interval used by setCheckpointInterval() to select sqrt(depth)
+     */
+    public static final int CHECKPOINT_SQRT = 0;
+
+    /**
+     * Per-layer working buffers for a whole batch: outputs, pre-activations and error terms.
+     * Sample s of layer l starts at s * size_l.
+     * Checkpoint layers (l % mCheckpointInterval == 0) and the output layer own their buffers; the other layers
+     * share the buffers of slot l % mCheckpointInterval with the layers of other segments.
+     * Error terms are only needed for two consecutive layers, so layer l uses error buffer l % 2.
+     */
+    private double[][] mOutputs;
+    private double[][] mPreActivations;
+    private double[][] mDeltas;
+    private int mBatchCapacity = 0;
+    private int mCheckpointInterval = 1;
+
+    /**
+     * Segment whose layers are currently held by the shared buffers, or -1
+     */
+    private int mValidSegment = -1;
+
+    private ParameterConstraint mConstraint;
+
+    /**
+     * Create a trainer for a network
+     * @param network network to train. Its connection matrices and biases are updated in place.
+     * @param optimizer update rule
+     */
+    public NetworkTrainer(NeuralNetwork network, Optimizer optimizer) {
+        mNetwork = network;
+        mOptimizer = optimizer;
+
+        mNumLayers = network.getNumberOfLayers();
+        mSizes = new int[mNumLayers];
+        mBehaviours = new Behaviour[mNumLayers];
+        for (int l = 0; l < mNumLayers; l++) {
+            mSizes[l] = network.getLayer(l).getSize();
+            mBehaviours[l] = network.getLayer(l).getBehaviour();
+        }
+        mInputBiases = network.getLayer(0).getBiases();
+
+        mWeightOffsets = new int[mNumLayers];
+        mBiasOffsets = new int[mNumLayers];
+        int length = 0;
+        for (int k = 1; k < mNumLayers; k++) {
+            mWeightOffsets[k - 1] = length;
+            length += mSizes[k - 1] * mSizes[k];
+            mBiasOffsets[k] = length;
+            length += mSizes[k];
+        }
+
+        mParameters = new double[length];
+        mGradients = new double[length];
+        gatherParameters();
+
+        mOptimizer.init(length);
+    }
+
+    /**
+     * Keep the activations of only every n-th layer during the backward pass and recompute the layers in
+     * between. 1 (the default) keeps every layer and never recomputes.
+     * @param interval distance between checkpoint layers, or CHECKPOINT_SQRT for the square root of the depth
+     */
+    public void setCheckpointInterval(int interval) {
+        if (interval == CHECKPOINT_SQRT) {
+            interval = (int) Math.ceil(Math.sqrt(mNumLayers));
+        }
+
+        mCheckpointInterval = Math.max(interval, 1);
+        mBatchCapacity = 0;
+        mOutputs = null;
+        mPreActivations = null;
+        mDeltas = null;
+    }
+
+    /**
+     * Get the distance between checkpoint layers
+     * @return checkpoint interval
+     */
+    public int getCheckpointInterval() {
+        return mCheckpointInterval;
+    }
+
+    /**
+     * Get the number of values held by the activation buffers for the largest batch trained so far
+     * @return number of doubles in the output, pre-activation and error buffers
+     */
+    public long getActivationBufferSize() {
+        if (mOutputs == null) {
+            return 0;
+        }
+
+        IdentityHashMap<double[], Boolean> buffers = new IdentityHashMap<>();
+        for (double[][] group : new double[][][] {mOutputs, mPreActivations, mDeltas}) {
+            for (double[] buffer : group) {
+                if (buffer != null) {
+                    buffers.put(buffer, Boolean.TRUE);
+                }
+            }
+        }
+
+        long size = 0;
+        for (double[] buffer : buffers.keySet()) {
+            size += buffer.length;
+        }
+        return size;
+    }
+
+    /**
+     * Train for a number of epochs over a data set, in mini-batches in data set order
+     * @param inputs input vectors
+     * @param targets target output vectors
+     * @param batchSize number of samples per step, at least 1
+     * @param epochs number of passes over the data set
+     * @return mean loss of the last epoch
+     */
+    public double train(double[][] inputs, double[][] targets, int batchSize, int epochs) {
+        batchSize = Math.max(batchSize, 1);
+        double loss = 0.0;
+        for (int epoch = 0; epoch < epochs; epoch++) {
+            loss = 0.0;
+            for (int from = 0; from < inputs.length; from += batchSize) {
+                int to = Math.min(from + batchSize, inputs.length);
+                loss += trainBatch(inputs, targets, null, from, to) * (to - from);
+            }
+            loss /= inputs.length;
+        }
+        return loss;
+    }
+
+    /**
+     * Perform one optimization step on a batch
+     * @param inputs input vectors
+     * @param targets target output vectors
+     * @return mean loss of the batch before the step
+     */
+    public double trainBatch(double[][] inputs, double[][] targets) {
+        return trainBatch(inputs, targets, null, 0, inputs.length);
+    }
+
+    /**
+     * Perform one optimization step on the samples indices[from..to) of a data set.
+     * The data set itself is only read, so it may be shared by several trainers.
+     * @param inputs input vectors
+     * @param targets target output vectors
+     * @param indices sample indices, or null to use samples from..to directly
+     * @param from first position in indices
+     * @param to last position in indices (exclusive)
+     * @return mean loss of the batch before the step
+     */
+    public double trainBatch(double[][] inputs, double[][] targets, int[] indices, int from, int to) {
+        int batch = to - from;
+        if (batch <= 0) {
+            return 0.0;
+        }
+
+        ensureCapacity(batch);
+        forward(inputs, indices, from, batch);
+
+        Arrays.fill(mGradients, 0.0);
+        double loss = backward(targets, indices, from, batch);
+
+        mOptimizer.step(mParameters, mGradients);
+        if (mConstraint != null) {
+            mConstraint.apply(mParameters);
+        }
+        scatterParameters();
+
+        return loss;
+    }
+
+    /**
+     * Compute the mean loss of the network on the samples indices[from..to) of a data set, without training
+     * @param inputs input vectors
+     * @param targets target output vectors
+     * @param indices sample indices, or null to use samples from..to directly
+     * @param from first position in indices
+     * @param to last position in indices (exclusive)
+     * @return mean loss
+     */
+    public double evaluate(double[][] inputs, double[][] targets, int[] indices, int from, int to) {
+        int batch = to - from;
+        if (batch <= 0) {
+            return 0.0;
+        }
+
+        ensureCapacity(batch);
+        forward(inputs, indices, from, batch);
+
+        int out = mNumLayers - 1;
+        int size_out = mSizes[out];
+        double loss = 0.0;
+        for (int s = 0; s < batch; s++) {
+            double[] target = targets[indices == null ? from + s : indices[from + s]];
+            for (int n = 0; n < size_out; n++) {
+                double error = mOutputs[out][s * size_out + n] - target[n];
+                loss += 0.5 * error * error;
+            }
+        }
+        return loss / batch;
+    }
+
+    /**
+     * Forward pass of a batch, keeping outputs and pre-activations of every layer
+     */
+    private void forward(double[][] inputs, int[] indices, int from, int batch) {
+        // Input layer
+        int size_0 = mSizes[0];
+        for (int s = 0; s < batch; s++) {
+            double[] input = inputs[indices == null ? from + s : indices[from + s]];
+            for (int n = 0; n < size_0; n++) {
+                mOutputs[0][s * size_0 + n] = input[n] - mInputBiases[n];
+            }
+            mBehaviours[0].activate(mOutputs[0], mOutputs[0], s * size_0, size_0);
+        }
+
+        for (int k = 1; k < mNumLayers; k++) {
+            forwardLayer(k, batch);
+        }
+
+        // The shared buffers hold the last segment before the output layer
+        mValidSegment = (mNumLayers - 2) / mCheckpointInterval;
+    }
+
+    /**
+     * Forward pass of layer k for a batch
+     */
+    private void forwardLayer(int k, int batch) {
+        int h = k - 1;
+        int size_h = mSizes[h];
+        int size_k = mSizes[k];
+        int wOffset = mWeightOffsets[h];
+        int bOffset = mBiasOffsets[k];
+        double[] hOutput = mOutputs[h];
+        double[] z = mPreActivations[k];
+        double[] a = mOutputs[k];
+        Behaviour behaviour = mBehaviours[k];
+
+        for (int s = 0; s < batch; s++) {
+            int zOffset = s * size_k;
+            Arrays.fill(z, zOffset, zOffset + size_k, 0.0);
+            for (int hn = 0; hn < size_h; hn++) {
+                double x = hOutput[s * size_h + hn];
+                if (x == 0.0) {
+                    continue;
+                }
+                int row = wOffset + hn * size_k;
+                for (int kn = 0; kn < size_k; kn++) {
+                    z[zOffset + kn] += mParameters[row + kn] * x;
+                }
+            }
+
+            for (int kn = 0; kn < size_k; kn++) {
+                z[zOffset + kn] -= mParameters[bOffset + kn];
+            }
+            behaviour.activate(z, a, zOffset, size_k);
+        }
+    }
+
+    /**
+     * Backward pass of a batch, accumulating the mean gradient of the loss
+     * @return mean loss of the batch
+     */
+    private double backward(double[][] targets, int[] indices, int from, int batch) {
+        int out = mNumLayers - 1;
+        int size_out = mSizes[out];
+        double scale = 1.0 / batch;
+        double loss = 0.0;
+
+        // Output layer error: dL/da = a - t
+        for (int s = 0; s < batch; s++) {
+            double[] target = targets[indices == null ? from + s : indices[from + s]];
+            for (int n = 0; n < size_out; n++) {
+                int i = s * size_out + n;
+                double error = mOutputs[out][i] - target[n];
+                loss += 0.5 * error * error;
+                mDeltas[out][i] = error * scale;
+            }
+            derive(out, s * size_out);
+        }
+
+        for (int k = out; k >= 1; k--) {
+            // Recompute the segment of layer k-1 if its buffers hold another segment
+            int h = k - 1;
+            int segment = h / mCheckpointInterval;
+            if (h % mCheckpointInterval != 0 && segment != mValidSegment) {
+                int checkpoint = segment * mCheckpointInterval;
+                for (int l = checkpoint + 1; l <= h; l++) {
+                    forwardLayer(l, batch);
+                }
+                mValidSegment = segment;
+            }
+
+            backwardLayer(k, batch);
+        }
+
+        return loss * scale;
+    }
+
+    /**
+     * Accumulate the gradients of the connection matrix before layer k and the biases of layer k,
+     * and propagate the error terms to layer k-1
+     */
+    private void backwardLayer(int k, int batch) {
+        int h = k - 1;
+        int size_h = mSizes[h];
+        int size_k = mSizes[k];
+        int wOffset = mWeightOffsets[h];
+        int bOffset = mBiasOffsets[k];
+        double[] hOutput = mOutputs[h];
+        double[] kDelta = mDeltas[k];
+
+        for (int s = 0; s < batch; s++) {
+            int dOffset = s * size_k;
+
+            // z = W^T a - b, so dL/db = -delta
+            for (int kn = 0; kn < size_k; kn++) {
+                mGradients[bOffset + kn] -= kDelta[dOffset + kn];
+            }
+
+            for (int hn = 0; hn < size_h; hn++) {
+                double x = hOutput[s * size_h + hn];
+                int row = wOffset + hn * size_k;
+                double back = 0.0;
+                for (int kn = 0; kn < size_k; kn++) {
+                    double d = kDelta[dOffset + kn];
+                    mGradients[row + kn] += x * d;
+                    back += mParameters[row + kn] * d;
+                }
+
+                // The input layer needs no error term
+                if (h > 0) {
+                    mDeltas[h][s * size_h + hn] = back;
+                }
+            }
+
+            if (h > 0) {
+                derive(h, s * size_h);
+            }
+        }
+    }
+
+    /**
+     * Turn the error terms of one sample of layer l from dL/da into dL/dz, in place
+     * @param l layer index
+     * @param offset first element of the sample
+     */
+    private void derive(int l, int offset) {
+        mBehaviours[l].backward(mPreActivations[l], mOutputs[l], mDeltas[l], offset, mSizes[l]);
+    }
+
+    private void ensureCapacity(int batch) {
+        if (batch <= mBatchCapacity) {
+            return;
+        }
+
+        int interval = mCheckpointInterval;
+        int out = mNumLayers - 1;
+
+        // Every shared slot is sized for the largest layer using it
+        int[] slotSizes = new int[interval];
+        int maxSize = 0;
+        for (int l = 0; l < mNumLayers; l++) {
+            maxSize = Math.max(maxSize, mSizes[l]);
+            if (l % interval != 0 && l != out) {
+                slotSizes[l % interval] = Math.max(slotSizes[l % interval], mSizes[l]);
+            }
+        }
+
+        double[][] slotOutputs = new double[interval][];
+        double[][] slotPreActivations = new double[interval][];
+        double[][] deltas = {new double[batch * maxSize], new double[batch * maxSize]};
+
+        mOutputs = new double[mNumLayers][];
+        mPreActivations = new double[mNumLayers][];
+        mDeltas = new double[mNumLayers][];
+        for (int l = 0; l < mNumLayers; l++) {
+            int slot = l % interval;
+            if (slot == 0 || l == out) {
+                mOutputs[l] = new double[batch * mSizes[l]];
+                mPreActivations[l] = l > 0 ? new double[batch * mSizes[l]] : null;
+            } else {
+                if (slotOutputs[slot] == null) {
+                    slotOutputs[slot] = new double[batch * slotSizes[slot]];
+                    slotPreActivations[slot] = new double[batch * slotSizes[slot]];
+                }
+                mOutputs[l] = slotOutputs[slot];
+                mPreActivations[l] = slotPreActivations[slot];
+            }
+            mDeltas[l] = l > 0 ? deltas[l % 2] : null;
+        }
+        mBatchCapacity = batch;
+        mValidSegment = -1;
+    }
+
+    /**
+     * Copy the connection matrices and biases of the network into the flat parameter vector
+     */
+    void gatherParameters() {
+        for (int k = 1; k < mNumLayers; k++) {
+            int size_k = mSizes[k];
+            double[][] connection = mNetwork.getConnection(k - 1);
+            for (int hn = 0; hn < mSizes[k - 1]; hn++) {
+                System.arraycopy(connection[hn], 0, mParameters, mWeightOffsets[k - 1] + hn * size_k, size_k);
+            }
+            System.arraycopy(mNetwork.getLayer(k).getBiases(), 0, mParameters, mBiasOffsets[k], size_k);
+        }
+    }
+
+    /**
+     * Copy the flat parameter vector into the connection matrices and biases of the network
+     */
+    void scatterParameters() {
+        for (int k = 1; k < mNumLayers; k++) {
+            int size_k = mSizes[k];
+            double[][] connection = mNetwork.getConnection(k - 1);
+            for (int hn = 0; hn < mSizes[k - 1]; hn++) {
+                System.arraycopy(mParameters, mWeightOffsets[k - 1] + hn * size_k, connection[hn], 0, size_k);
+            }
+            System.arraycopy(mParameters, mBiasOffsets[k], mNetwork.getLayer(k).getBiases(), 0, size_k);
+        }
+    }
+
+    /**
+     * Get the flat parameter vector. Changes must be followed by scatterParameters().
+     * @return live parameter vector
+     */
+    double[] getParameters() {
+        return mParameters;
+    }
+
+    /**
+     * Get the offset of the connection matrix before layer h+1 in the flat parameter vector
+     * @param h connection index
+     * @return offset of weight (0, 0) of the matrix, which is stored row-major
+     */
+    int getWeightOffset(int h) {
+        return mWeightOffsets[h];
+    }
+
+    /**
+     * Get the offset of the biases of layer k in the flat parameter vector
+     * @param k layer index, at least 1
+     * @return offset of bias 0 of the layer
+     */
+    int getBiasOffset(int k) {
+        return mBiasOffsets[k];
+    }
+
+    /**
+     * Set a constraint applied to the parameters after every step, e.g. a pruning mask
+     * @param constraint constraint, or null to remove it
+     */
+    public void setParameterConstraint(ParameterConstraint constraint) {
+        mConstraint = constraint;
+    }
+
+    /**
+     * Get the number of trainable parameters
+     * @return number of parameters
+     */
+    public int getParameterCount() {
+        return mParameters.length;
+    }
+
+    /**
+     * Get the network being trained
+     * @return network
+     */
+    public NeuralNetwork getNetwork() {
+        return mNetwork;
+    }
+
+    /**
+     * Get the optimizer
+     * @return optimizer
+     */
+    public Optimizer getOptimizer() {
+        return mOptimizer;
+    }
 }
@@ -257,17 +257,41 @@ public abstract class NetworkXmlParser
             case IDENTITY:
                 return "identity";
 
+            case RELU:
+                return "relu";
+
+            case LEAKY_RELU:
+                return "leaky_relu";
+
+            case TANH:
+                return "tanh";
+
+            case SOFTMAX:
+                return "softmax";
+
             case LOGISTIC:
             default:
                 return "logistic";
         }
     }
 
-    private static NetworkDescriptor.BehaviourType getBehaviourTypeFromAttribute(String attribute) {
+    static NetworkDescriptor.BehaviourType getBehaviourTypeFromAttribute(String attribute) {
         switch (attribute) {
             case "identity":
                 return NetworkDescriptor.BehaviourType.IDENTITY;
 
+            case "relu":
+                return NetworkDescriptor.BehaviourType.RELU;
+
+            case "leaky_relu":
+                return NetworkDescriptor.BehaviourType.LEAKY_RELU;
+
+            case "tanh":
+                return NetworkDescriptor.BehaviourType.TANH;
+
+            case "softmax":
+                return NetworkDescriptor.BehaviourType.SOFTMAX;
+
             case "logistic":
             default:
                 return NetworkDescriptor.BehaviourType.LOGISTIC;
@@ -17,12 +17,18 @@
 package org.jlantxa.neural;
 
 import org.jlantxa.neural.behaviour.Behaviour;
-import org.jlantxa.neural.behaviour.IdentityFunction;
-import org.jlantxa.neural.behaviour.LogisticFunction;
+import org.jlantxa.neural.behaviour.ReluFunction;
 
 import java.util.ArrayList;
-
-public class NeuralNetwork
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+public class NeuralNetwork implements InferenceEngine
 {
     /**
      * Layers, including input, hidden and output
@@ -36,6 +42,22 @@ public class NeuralNetwork
      */
     private final ArrayList<double[][]> mConnections = new ArrayList<>();
 
+    /**
+     * Connection matrices that are still being loaded, or null once all of them are available.
+     * A pending matrix is null in mConnections until it is first used.
+     */
+    private volatile List<Future<double[][]>> mPendingConnections;
+
+    /**
+     * Per-thread working buffers of inputGradients(), reused across calls
+     */
+    private final ThreadLocal<GradientBuffers> mGradientBuffers = new ThreadLocal<>();
+
+    /**
+     * Incremented whenever layers are added or removed, so stale gradient buffers are replaced
+     */
+    private volatile int mTopologyVersion = 0;
+
     /**
      * Empty Neural Network constructor.
      */
@@ -54,22 +76,39 @@ public class NeuralNetwork
 
         for (NetworkDescriptor.LayerDescriptor layerDescriptor : layerDescriptors) {
             double[] biases = layerDescriptor.biases;
-
-            Behaviour behaviour;
-            switch (layerDescriptor.behaviourType) {
-                case IDENTITY:
-                    behaviour = new IdentityFunction();
-                    break;
-
-                case LOGISTIC:
-                default:
-                    behaviour = new LogisticFunction();
-            }
-
+            Behaviour behaviour = NetworkDescriptor.createBehaviour(layerDescriptor.behaviourType);
             mLayers.add(new Layer(biases, behaviour));
         }
     }
 
+    /**
+     * Create a Neural Network whose connection matrices are still being loaded.
+     * Every matrix is waited for the first time it is used.
+     * @param biases bias vector of every layer
+     * @param behaviourTypes activation function of every layer
+     * @param connections pending connection matrices, one for every layer after the input layer
+     */
+    NeuralNetwork(List<double[]> biases, List<NetworkDescriptor.BehaviourType> behaviourTypes,
+                  List<Future<double[][]>> connections) {
+        for (int l = 0; l < biases.size(); l++) {
+            mLayers.add(new Layer(biases.get(l), NetworkDescriptor.createBehaviour(behaviourTypes.get(l))));
+        }
+        for (int h = 0; h < connections.size(); h++) {
+            mConnections.add(null);
+        }
+        mPendingConnections = connections;
+    }
+
+    /**
+     * Create a Neural Network using a NetworkDescriptor and let a KernelTuner choose the kernel of every layer.
+     * @param networkDescriptor NetworkDescriptor object
+     * @param kernelTuner KernelTuner used to select the fastest kernel for every layer shape
+     */
+    public NeuralNetwork(NetworkDescriptor networkDescriptor, KernelTuner kernelTuner) {
+        this(networkDescriptor);
+        kernelTuner.tune(this);
+    }
+
     /**
      * Add a layer, including connection matrix and activation function
      * @param biases vector of biases
@@ -89,6 +128,7 @@ public class NeuralNetwork
         }
 
         Layer layer = new Layer(biases, behaviour);
+        materializeConnections();
 
         // Is this the first layer?
         if (mLayers.size() <= 0) {
@@ -117,6 +157,8 @@ public class NeuralNetwork
             mLayers.add(layer);
             mConnections.add(connections);
         }
+
+        mTopologyVersion++;
     }
 
     /**
@@ -129,11 +171,13 @@ public class NeuralNetwork
             return;
         }
 
+        materializeConnections();
         mLayers.remove(numLayers - 1);
         int numConnections = mConnections.size();
         if (numConnections > 0) {
             mConnections.remove(numConnections - 1);
         }
+        mTopologyVersion++;
     }
 
     /**
@@ -149,7 +193,8 @@ public class NeuralNetwork
         if (h < 0) return;
         if (k >= mLayers.size()) return;
 
-        double[] hOutput = mLayers.get(h).output;
+        Layer layer_h = mLayers.get(h);
+        double[] hOutput = layer_h.output;
         Layer layer_k = mLayers.get(k);
 
         int size_h = mLayers.get(h).size;
@@ -158,14 +203,39 @@ public class NeuralNetwork
         /* The connection matrix is associated with hidden and output layers.
          * Therefore, the connection matrix before layer k has index k-1, i.e. h.
          */
-        double[][] connection = mConnections.get(h);
-        double[] k_input = new double[size_k];
+        double[][] connection = getConnection(h);
+        double[] k_input = layer_k.input;
+
+        // Weighted sum. Sparse outputs skip the rows of the inputs that are exactly 0
+        if (layer_h.nonZero != null && layer_k.kernel != LayerKernel.PARALLEL &&
+                layer_k.kernel != LayerKernel.REPRODUCIBLE) {
+            sumSparseRows(connection, hOutput, k_input, layer_h.nonZero);
+        } else {
+            switch (layer_k.kernel) {
+                case ROW:
+                    sumRows(connection, hOutput, k_input, 0, size_h);
+                    break;
 
-        // Weighted sum
-        for (int kn = 0; kn < size_k; kn++) {
-            k_input[kn] = 0;
-            for (int hn = 0; hn < size_h; hn++) {
-                k_input[kn] += connection[hn][kn] * hOutput[hn];
+                case TILED:
+                    sumTiled(connection, hOutput, k_input, size_h, size_k, layer_k.blockSize);
+                    break;
+
+                case PARALLEL:
+                    sumParallel(connection, hOutput, k_input, size_h, layer_k.blockSize, layer_k.partials);
+                    break;
+
+                case REPRODUCIBLE:
+                    sumColumnsParallel(connection, hOutput, k_input, size_h, size_k, layer_k.blockSize);
+                    break;
+
+                case SCALAR:
+                default:
+                    for (int kn = 0; kn < size_k; kn++) {
+                        k_input[kn] = 0;
+                        for (int hn = 0; hn < size_h; hn++) {
+                            k_input[kn] += connection[hn][kn] * hOutput[hn];
+                        }
+                    }
             }
         }
 
@@ -173,6 +243,167 @@ public class NeuralNetwork
         layer_k.propagate(k_input);
     }
 
+    /**
+     * Weighted sum of rows [from, to) of a connection matrix, read row by row
+     * @param connection connection matrix
+     * @param hOutput output of the previous layer
+     * @param sum output vector of the weighted sum
+     * @param from first row
+     * @param to last row (exclusive)
+     */
+    private static void sumRows(double[][] connection, double[] hOutput, double[] sum, int from, int to) {
+        Arrays.fill(sum, 0.0);
+        for (int hn = from; hn < to; hn++) {
+            double x = hOutput[hn];
+            if (x == 0.0) {
+                continue;
+            }
+            double[] row = connection[hn];
+            for (int kn = 0; kn < sum.length; kn++) {
+                sum[kn] += row[kn] * x;
+            }
+        }
+    }
+
+    /**
+     * Weighted sum of the rows of a connection matrix whose input is not 0
+     * @param connection connection matrix
+     * @param hOutput output of the previous layer
+     * @param sum output vector of the weighted sum
+     * @param nonZero buffer for the indices of the inputs that are not 0, as large as hOutput
+     */
+    private static void sumSparseRows(double[][] connection, double[] hOutput, double[] sum, int[] nonZero) {
+        int count = 0;
+        for (int hn = 0; hn < hOutput.length; hn++) {
+            if (hOutput[hn] != 0.0) {
+                nonZero[count++] = hn;
+            }
+        }
+
+        Arrays.fill(sum, 0.0);
+        for (int i = 0; i < count; i++) {
+            int hn = nonZero[i];
+            double x = hOutput[hn];
+            double[] row = connection[hn];
+            for (int kn = 0; kn < sum.length; kn++) {
+                sum[kn] += row[kn] * x;
+            }
+        }
+    }
+
+    /**
+     * Weighted sum of a connection matrix, read row by row over blocks of output neurons
+     */
+    private static void sumTiled(double[][] connection, double[] hOutput, double[] sum,
+                                 int size_h, int size_k, int blockSize) {
+        Arrays.fill(sum, 0.0);
+        for (int block = 0; block < size_k; block += blockSize) {
+            int end = Math.min(block + blockSize, size_k);
+            for (int hn = 0; hn < size_h; hn++) {
+                double x = hOutput[hn];
+                if (x == 0.0) {
+                    continue;
+                }
+                double[] row = connection[hn];
+                for (int kn = block; kn < end; kn++) {
+                    sum[kn] += row[kn] * x;
+                }
+            }
+        }
+    }
+
+    /**
+     * Weighted sum of a connection matrix, with blocks of rows computed in parallel
+     */
+    private static void sumParallel(final double[][] connection, final double[] hOutput, double[] sum,
+                                    final int size_h, final int blockSize, final double[][] partials) {
+        IntStream.range(0, partials.length).parallel().forEach(new IntConsumer() {
+            @Override
+            public void accept(int block) {
+                int from = block * blockSize;
+                sumRows(connection, hOutput, partials[block], from, Math.min(from + blockSize, size_h));
+            }
+        });
+
+        System.arraycopy(partials[0], 0, sum, 0, sum.length);
+        for (int block = 1; block < partials.length; block++) {
+            double[] partial = partials[block];
+            for (int kn = 0; kn < sum.length; kn++) {
+                sum[kn] += partial[kn];
+            }
+        }
+    }
+
+    /**
+     * Weighted sum of a connection matrix, with blocks of output neurons computed in parallel.
+     * Every output neuron is summed over all rows in order, so the result does not depend on the blocks.
+     */
+    private static void sumColumnsParallel(final double[][] connection, final double[] hOutput, final double[] sum,
+                                           final int size_h, final int size_k, final int blockSize) {
+        int blocks = (size_k + blockSize - 1) / blockSize;
+        if (blocks <= 1 || ForkJoinPool.getCommonPoolParallelism() <= 1) {
+            // Same order of summation, without the overhead of the tasks
+            sumRows(connection, hOutput, sum, 0, size_h);
+            return;
+        }
+
+        IntStream.range(0, blocks).parallel().forEach(new IntConsumer() {
+            @Override
+            public void accept(int block) {
+                int from = block * blockSize;
+                int to = Math.min(from + blockSize, size_k);
+                Arrays.fill(sum, from, to, 0.0);
+                for (int hn = 0; hn < size_h; hn++) {
+                    double x = hOutput[hn];
+                    if (x == 0.0) {
+                        continue;
+                    }
+                    double[] row = connection[hn];
+                    for (int kn = from; kn < to; kn++) {
+                        sum[kn] += row[kn] * x;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Select the kernel used to compute the weighted sum of layer k
+     * @param k layer index (hidden or output layer)
+     * @param kernel kernel strategy
+     * @param blockSize block size for TILED, PARALLEL and REPRODUCIBLE kernels, ignored otherwise
+     */
+    public void setLayerKernel(int k, LayerKernel kernel, int blockSize) {
+        Layer layer = mLayers.get(k);
+        layer.kernel = kernel;
+        layer.blockSize = Math.max(blockSize, 1);
+        layer.partials = null;
+
+        if (kernel == LayerKernel.PARALLEL && k > 0) {
+            int size_h = mLayers.get(k - 1).size;
+            int blocks = (size_h + layer.blockSize - 1) / layer.blockSize;
+            layer.partials = new double[blocks][layer.size];
+        }
+    }
+
+    /**
+     * Get the kernel used to compute the weighted sum of layer k
+     * @param k layer index
+     * @return kernel strategy
+     */
+    public LayerKernel getLayerKernel(int k) {
+        return mLayers.get(k).kernel;
+    }
+
+    /**
+     * Get the block size of the kernel of layer k
+     * @param k layer index
+     * @return block size
+     */
+    public int getLayerBlockSize(int k) {
+        return mLayers.get(k).blockSize;
+    }
+
     /**
      * Execute a cycle of the network
      * @param netInput Network input vector
@@ -188,6 +419,133 @@ public class NeuralNetwork
         return getOutput();
     }
 
+    /**
+     * Compute the gradient of the outputs with respect to the network input for a batch of samples,
+     * with one forward and one backward pass per sample. The outputs are weighted by outputSeed, i.e. the
+     * result is d(sum_n outputSeed[n] * output[n]) / d(input); a one-hot seed selects a single output.
+     * Samples are processed in parallel on per-thread buffers, so the layer outputs of the network
+     * are left untouched and the network must not be modified during the call.
+     * @param inputs batch of network input vectors
+     * @param outputSeed weight of every output neuron
+     * @return input gradient of every sample, [batch][input size]
+     */
+    public double[][] inputGradients(double[][] inputs, double[] outputSeed) {
+        return inputGradients(inputs, outputSeed, null);
+    }
+
+    /**
+     * Compute the input gradients of a batch of samples into a reusable result matrix
+     * @param inputs batch of network input vectors
+     * @param outputSeed weight of every output neuron
+     * @param result [batch][input size] matrix receiving the gradients, or null to allocate a new one
+     * @return result matrix
+     */
+    public double[][] inputGradients(final double[][] inputs, final double[] outputSeed, double[][] result) {
+        final int inputSize = getInputSize();
+        if (outputSeed.length != getOutputSize()) {
+            throw new IllegalArgumentException("The output seed has " + outputSeed.length +
+                    " elements, expected " + getOutputSize());
+        }
+
+        if (result == null || result.length != inputs.length) {
+            result = new double[inputs.length][inputSize];
+        }
+
+        final double[][] gradients = result;
+        IntConsumer sample = new IntConsumer() {
+            @Override
+            public void accept(int s) {
+                if (gradients[s] == null || gradients[s].length != inputSize) {
+                    gradients[s] = new double[inputSize];
+                }
+                inputGradient(inputs[s], outputSeed, gradients[s]);
+            }
+        };
+
+        if (inputs.length > 1) {
+            IntStream.range(0, inputs.length).parallel().forEach(sample);
+        } else {
+            IntStream.range(0, inputs.length).forEach(sample);
+        }
+
+        return result;
+    }
+
+    /**
+     * Forward and backward pass of a single sample on the buffers of the calling thread
+     */
+    private void inputGradient(double[] netInput, double[] outputSeed, double[] gradient) {
+        GradientBuffers buffers = mGradientBuffers.get();
+        if (buffers == null || buffers.topologyVersion != mTopologyVersion) {
+            int[] sizes = new int[mLayers.size()];
+            for (int l = 0; l < sizes.length; l++) {
+                sizes[l] = mLayers.get(l).size;
+            }
+            buffers = new GradientBuffers(sizes, mTopologyVersion);
+            mGradientBuffers.set(buffers);
+        }
+
+        int out = buffers.z.length - 1;
+        double[][] z = buffers.z;
+        double[][] a = buffers.a;
+        double[][] g = buffers.g;
+
+        // Forward, keeping the inputs and outputs of every layer
+        for (int l = 0; l <= out; l++) {
+            Layer layer = mLayers.get(l);
+            double[] zl = z[l];
+            if (l == 0) {
+                for (int n = 0; n < layer.size; n++) {
+                    zl[n] = netInput[n] - layer.biases[n];
+                }
+            } else {
+                double[][] connection = getConnection(l - 1);
+                double[] hOutput = a[l - 1];
+                Arrays.fill(zl, 0.0);
+                for (int hn = 0; hn < hOutput.length; hn++) {
+                    double x = hOutput[hn];
+                    if (x == 0.0) {
+                        continue;
+                    }
+                    double[] row = connection[hn];
+                    for (int kn = 0; kn < layer.size; kn++) {
+                        zl[kn] += row[kn] * x;
+                    }
+                }
+
+                for (int n = 0; n < layer.size; n++) {
+                    zl[n] -= layer.biases[n];
+                }
+            }
+
+            layer.behaviour.activate(zl, a[l], 0, layer.size);
+        }
+
+        // Backward, from d/d(output) to d/d(layer input) and through the connection matrices
+        System.arraycopy(outputSeed, 0, g[out], 0, outputSeed.length);
+        for (int l = out; l >= 0; l--) {
+            Layer layer = mLayers.get(l);
+            double[] gl = g[l];
+            layer.behaviour.backward(z[l], a[l], gl, 0, layer.size);
+
+            if (l > 0) {
+                double[][] connection = getConnection(l - 1);
+                double[] gh = g[l - 1];
+                for (int hn = 0; hn < gh.length; hn++) {
+                    double[] row = connection[hn];
+                    double sum = 0.0;
+                    for (int kn = 0; kn < layer.size; kn++) {
+                        sum += row[kn] * gl[kn];
+                    }
+                    gh[hn] = sum;
+                }
+            }
+        }
+
+        // The input layer subtracts its biases from the network input, so d(layer input)/d(input) = 1
+        System.arraycopy(g[0], 0, gradient, 0, gradient.length);
+    }
+
     /**
      * Get output vector
      * @return output vector
@@ -204,6 +562,60 @@ public class NeuralNetwork
         return mLayers.size();
     }
 
+    /**
+     * Get layer at index l
+     * @param l layer index
+     * @return layer l
+     */
+    Layer getLayer(int l) {
+        return mLayers.get(l);
+    }
+
+    /**
+     * Get the connection matrix before layer h+1
+     * @param h connection index
+     * @return connection matrix h
+     */
+    double[][] getConnection(int h) {
+        if (mPendingConnections != null) {
+            materializeConnection(h);
+        }
+        return mConnections.get(h);
+    }
+
+    /**
+     * Wait for a pending connection matrix
+     * @param h connection index
+     */
+    private synchronized void materializeConnection(int h) {
+        List<Future<double[][]>> pending = mPendingConnections;
+        if (pending == null || mConnections.get(h) != null) {
+            return;
+        }
+
+        try {
+            mConnections.set(h, pending.get(h).get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading connection matrix " + h, e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Connection matrix " + h + " could not be loaded", e.getCause());
+        }
+
+        if (!mConnections.contains(null)) {
+            mPendingConnections = null;
+        }
+    }
+
+    /**
+     * Wait for all pending connection matrices
+     */
+    private void materializeConnections() {
+        for (int h = 0; mPendingConnections != null && h < mConnections.size(); h++) {
+            materializeConnection(h);
+        }
+    }
+
     /**
      * Get input size (number of neurons in the input layer)
      * @return input size
@@ -234,7 +646,7 @@ public class NeuralNetwork
             for (int l = 1; l < mLayers.size(); l++) {
                 Behaviour behaviour = mLayers.get(l).getBehaviour();
                 NetworkDescriptor.BehaviourType behaviourType = NetworkDescriptor.parseBehaviourType(behaviour);
-                descriptor.addLayer(mLayers.get(l).biases, behaviourType, mConnections.get(l - 1));
+                descriptor.addLayer(mLayers.get(l).biases, behaviourType, getConnection(l - 1));
             }
         }
         catch (TopologyException e) {
@@ -243,6 +655,30 @@ public class NeuralNetwork
         return descriptor;
     }
 
+    /**
+     * Layer inputs, outputs and gradients of one sample, owned by a single thread.
+     * Static, so the buffers left in the ThreadLocalMap of a pool thread do not keep the network alive.
+     */
+    private static class GradientBuffers
+    {
+        private final int topologyVersion;
+        private final double[][] z;
+        private final double[][] a;
+        private final double[][] g;
+
+        private GradientBuffers(int[] sizes, int topologyVersion) {
+            this.topologyVersion = topologyVersion;
+            z = new double[sizes.length][];
+            a = new double[sizes.length][];
+            g = new double[sizes.length][];
+            for (int l = 0; l < sizes.length; l++) {
+                z[l] = new double[sizes[l]];
+                a[l] = new double[sizes[l]];
+                g[l] = new double[sizes[l]];
+            }
+        }
+    }
+
     /**
      * A layer is a collection of neurons of equal behaviour each of them equally distant from the input layer.
      */
@@ -252,6 +688,16 @@ public class NeuralNetwork
         private final Behaviour behaviour;
         private final double [] biases;
         private final double [] output;
+        private final double [] input;
+
+        private LayerKernel kernel = LayerKernel.SCALAR;
+        private int blockSize = 1;
+        private double[][] partials;
+
+        /**
+         * Index buffer for sparsity-aware propagation. Only allocated for behaviours that output exact zeros.
+         */
+        private final int[] nonZero;
 
         private Layer(double[] biases, Behaviour behaviour) {
             this.size = biases.length;
@@ -259,6 +705,8 @@ public class NeuralNetwork
 
             this.biases = biases;
             this.output = new double[this.size];
+            this.input = new double[this.size];
+            this.nonZero = behaviour instanceof ReluFunction ? new int[this.size] : null;
         }
 
         /**
@@ -267,8 +715,9 @@ public class NeuralNetwork
          */
         void propagate(double[] layerInput) {
             for (int n = 0; n < size; n++) {
-                output[n] = behaviour.activation(layerInput[n] - biases[n]);
+                output[n] = layerInput[n] - biases[n];
             }
+            behaviour.activate(output, output, 0, size);
         }
 
         /**
@@ -296,6 +745,14 @@ public class NeuralNetwork
             return this.biases[n];
         }
 
+        /**
+         * Get the bias vector of the whole layer
+         * @return bias vector of the layer
+         */
+        double[] getBiases() {
+            return this.biases;
+        }
+
         /**
          * Get the output vector of the whole layer
          * @return Output vector of the layer
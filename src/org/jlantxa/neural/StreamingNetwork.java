@@ -0,0 +1,186 @@
+/*
+ * Copyright 2017 Javier Lancha Vázquez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.jlantxa.neural;
+
+import org.jlantxa.neural.behaviour.Behaviour;
+
+import java.util.Arrays;
+
+/**
+ * A StreamingNetwork runs a NeuralNetwork over a time series, one sample at a time, for networks whose input
+ * is a sliding window of the last samples, oldest first. The window is never built.
+ *
+ * Every input slot has its own rows of the first connection matrix, so a sample contributes differently to
+ * each of the windows it belongs to. When a sample arrives, its contribution to the first layer is added to
+ * a ring of partial sums, one for each of the windows ending at the current and the next windowLength-1
+ * time steps. The partial sum of the current window is then complete, so it is propagated
+ * through the rest of the network and recycled for the window windowLength steps ahead.
+ * Each sample is therefore read once, no input window is copied and no memory is allocated per step.
+ * The arithmetic of the first layer is the same as for execute(), and the sums are accumulated in the same
+ * order, so the outputs are the same as executing the network on the concatenated window.
+ *
+ * Until windowLength samples have been seen, the missing samples are taken as zero vectors.
+ * The network's layer outputs are overwritten, so it must not be used by other threads meanwhile.
+ */
+public class StreamingNetwork
+{
+    private final NeuralNetwork mNetwork;
+    private final int mWindowLength;
+    private final int mSampleSize;
+
+    private final double[][] mConnection;
+    private final double[] mInputBiases;
+    private final Behaviour mInputBehaviour;
+
+    /**
+     * Partial sums of the first layer. mAccumulators[(mHead + j) % windowLength] belongs to the window
+     * ending j steps after the current one.
+     */
+    private final double[][] mAccumulators;
+    private int mHead = 0;
+
+    private final double[] mActivations;
+    private final double[] mZeroSample;
+    private long mSteps = 0;
+
+    /**
+     * Create a streaming executor
+     * @param network network whose input is a window of windowLength samples, oldest first
+     * @param windowLength number of samples in the input window
+     * @throws TopologyException if the network has fewer than two layers, its input size is not a multiple of
+     * windowLength, or its input layer is not element-wise
+     */
+    public StreamingNetwork(NeuralNetwork network, int windowLength) throws TopologyException {
+        if (network.getNumberOfLayers() < 2) {
+            throw new TopologyException("A streaming network needs at least one layer after the input layer.");
+        }
+        if (windowLength <= 0 || network.getInputSize() % windowLength != 0) {
+            throw new TopologyException("The input size " + network.getInputSize() +
+                    " is not a multiple of the window length " + windowLength);
+        }
+
+        mInputBehaviour = network.getLayer(0).getBehaviour();
+        if (!mInputBehaviour.isElementWise()) {
+            throw new TopologyException("An input layer that is not element-wise depends on the whole window.");
+        }
+
+        mNetwork = network;
+        mWindowLength = windowLength;
+        mSampleSize = network.getInputSize() / windowLength;
+        mConnection = network.getConnection(0);
+        mInputBiases = network.getLayer(0).getBiases();
+        mAccumulators = new double[windowLength][network.getLayer(1).getSize()];
+        mActivations = new double[mSampleSize];
+        mZeroSample = new double[mSampleSize];
+
+        reset();
+    }
+
+    /**
+     * Feed the next sample and execute the network on the window ending with it.
+     * The returned vector is reused by subsequent calls.
+     * @param sample sample vector, of size input size / windowLength
+     * @return Network output vector
+     */
+    public double[] step(double[] sample) {
+        accumulate(sample);
+        mSteps++;
+
+        // The window ending now is complete
+        double[] sum = mAccumulators[mHead];
+        mNetwork.getLayer(1).propagate(sum);
+        for (int l = 2; l < mNetwork.getNumberOfLayers(); l++) {
+            mNetwork.propagateLayer(l);
+        }
+
+        // Recycle it for the window ending windowLength steps ahead
+        Arrays.fill(sum, 0.0);
+        mHead = (mHead + 1) % mWindowLength;
+
+        return mNetwork.getOutput();
+    }
+
+    /**
+     * Add the contribution of a sample to every window it belongs to.
+     * In the window ending j steps ahead, the sample is in slot windowLength-1-j.
+     */
+    private void accumulate(double[] sample) {
+        int size_k = mAccumulators[0].length;
+        for (int j = 0; j < mWindowLength; j++) {
+            int slotOffset = (mWindowLength - 1 - j) * mSampleSize;
+            double[] sum = mAccumulators[(mHead + j) % mWindowLength];
+
+            for (int i = 0; i < mSampleSize; i++) {
+                mActivations[i] = mInputBehaviour.activation(sample[i] - mInputBiases[slotOffset + i]);
+            }
+
+            for (int i = 0; i < mSampleSize; i++) {
+                double x = mActivations[i];
+                if (x == 0.0) {
+                    continue;
+                }
+                double[] row = mConnection[slotOffset + i];
+                for (int kn = 0; kn < size_k; kn++) {
+                    sum[kn] += row[kn] * x;
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget all past samples. The window is filled with zero vectors again.
+     */
+    public void reset() {
+        for (double[] sum : mAccumulators) {
+            Arrays.fill(sum, 0.0);
+        }
+        mHead = 0;
+        mSteps = 0;
+
+        // Preload the contributions of the zero samples preceding the stream. Every step completes the window
+        // at mHead, so windowLength-1 zero samples fill all pending windows except their last slot.
+        for (int s = 0; s < mWindowLength - 1; s++) {
+            accumulate(mZeroSample);
+            Arrays.fill(mAccumulators[mHead], 0.0);
+            mHead = (mHead + 1) % mWindowLength;
+        }
+    }
+
+    /**
+     * Check whether the window holds only real samples
+     * @return true once windowLength samples have been fed since the last reset
+     */
+    public boolean isPrimed() {
+        return mSteps >= mWindowLength;
+    }
+
+    /**
+     * Get the number of samples in the input window
+     * @return window length
+     */
+    public int getWindowLength() {
+        return mWindowLength;
+    }
+
+    /**
+     * Get the size of a sample
+     * @return sample size
+     */
+    public int getSampleSize() {
+        return mSampleSize;
+    }
+}
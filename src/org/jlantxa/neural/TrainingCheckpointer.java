@@ -0,0 +1,401 @@
+/*
+ * Copyright 2017 Javier Lancha Vázquez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.jlantxa.neural;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A TrainingCheckpointer takes snapshots of a NetworkTrainer without blocking the training.
+ * A checkpoint copies the parameters, the optimizer state and the step count into one of two snapshot
+ * buffers; a background thread then writes the buffer to a temporary file and renames it atomically
+ * into place. The training is only blocked if both buffers are still being written.
+ *
+ * In incremental mode, only every n-th checkpoint is a full snapshot. The others are deltas storing only
+ * the chunks of the state that differ from the last full snapshot, plus a reference to it. If no full
+ * snapshot has been written successfully yet, a full snapshot is written instead of a delta.
+ * Numbering continues after the checkpoints already in the directory, so a resumed run never replaces the
+ * base of an older delta; restore() still rejects a delta whose base does not match its step count and checksum.
+ * restore() reproduces the exact training state from either kind of checkpoint.
+ */
+public class TrainingCheckpointer implements Closeable
+{
+    private static final int MAGIC = 0x4e434b50; // "NCKP"
+    private static final int VERSION = 2;
+    private static final byte TYPE_FULL = 0;
+    private static final byte TYPE_DELTA = 1;
+    private static final int CHUNK_SIZE = 1024;
+    private static final String PREFIX = "checkpoint-";
+    private static final String EXTENSION = ".nck";
+
+    private final NetworkTrainer mTrainer;
+    private final File mDirectory;
+    private final int mFullInterval;
+    private final int mLength;
+    private final ExecutorService mWriter;
+
+    private final Snapshot[] mSnapshots = new Snapshot[2];
+    private int mNextSnapshot = 0;
+    private long mCheckpointCount;
+
+    /**
+     * Last full snapshot that was written successfully, only accessed by the writer thread.
+     * mBaseName is null until there is one.
+     */
+    private final double[] mBase;
+    private String mBaseName;
+    private long mBaseStepCount;
+    private long mBaseChecksum;
+
+    /**
+     * Create a checkpointer writing full snapshots only
+     * @param trainer trainer to checkpoint
+     * @param directory directory for the checkpoint files
+     */
+    public TrainingCheckpointer(NetworkTrainer trainer, File directory) {
+        this(trainer, directory, 1);
+    }
+
+    /**
+     * Create a checkpointer
+     * @param trainer trainer to checkpoint
+     * @param directory directory for the checkpoint files
+     * @param fullInterval every fullInterval-th checkpoint is a full snapshot, the rest are deltas.
+     *                     1 writes full snapshots only.
+     */
+    public TrainingCheckpointer(NetworkTrainer trainer, File directory, int fullInterval) {
+        mTrainer = trainer;
+        mDirectory = directory;
+        mFullInterval = Math.max(fullInterval, 1);
+
+        int length = trainer.getParameterCount();
+        for (double[] state : trainer.getOptimizer().getState()) {
+            length += state.length;
+        }
+        mLength = length;
+
+        for (int b = 0; b < mSnapshots.length; b++) {
+            mSnapshots[b] = new Snapshot(mLength);
+        }
+        mBase = mFullInterval > 1 ? new double[mLength] : null;
+
+        // Never overwrite the checkpoints of a previous run, deltas may still refer to them
+        mCheckpointCount = getNextIndex(directory);
+
+        mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "checkpoint-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Take a checkpoint of the current training state. Must be called from the training thread,
+     * between steps. The file is written in the background.
+     * @return Future completing with the checkpoint file once it has been written
+     * @throws IOException if writing the previous use of the snapshot buffer failed
+     */
+    public Future<File> checkpoint() throws IOException {
+        final Snapshot snapshot = mSnapshots[mNextSnapshot];
+        mNextSnapshot = (mNextSnapshot + 1) % mSnapshots.length;
+
+        // Wait for the buffer to be free
+        snapshot.await();
+
+        // Copy the state
+        double[] parameters = mTrainer.getParameters();
+        System.arraycopy(parameters, 0, snapshot.data, 0, parameters.length);
+        int offset = parameters.length;
+        for (double[] state : mTrainer.getOptimizer().getState()) {
+            System.arraycopy(state, 0, snapshot.data, offset, state.length);
+            offset += state.length;
+        }
+        snapshot.stepCount = mTrainer.getOptimizer().getStepCount();
+
+        final boolean full = mCheckpointCount % mFullInterval == 0;
+        final File file = new File(mDirectory, String.format("%s%012d%s", PREFIX, mCheckpointCount, EXTENSION));
+        mCheckpointCount++;
+
+        snapshot.pending = mWriter.submit(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                write(snapshot, file, full);
+                return file;
+            }
+        });
+        return snapshot.pending;
+    }
+
+    /**
+     * Write a snapshot to a temporary file and move it atomically into place. Runs on the writer thread.
+     */
+    private void write(Snapshot snapshot, File file, boolean full) throws IOException {
+        // A delta needs a valid base
+        full = full || mBaseName == null;
+
+        ByteBuffer buffer = snapshot.buffer;
+        buffer.clear();
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.put(full ? TYPE_FULL : TYPE_DELTA);
+        buffer.putLong(snapshot.stepCount);
+        buffer.putInt(mLength);
+
+        if (full) {
+            for (double value : snapshot.data) {
+                buffer.putDouble(value);
+            }
+        } else {
+            byte[] baseName = mBaseName.getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(baseName.length);
+            buffer.put(baseName);
+            buffer.putLong(mBaseStepCount);
+            buffer.putLong(mBaseChecksum);
+
+            int countPosition = buffer.position();
+            buffer.putInt(0);
+            int changed = 0;
+            for (int chunk = 0; chunk * CHUNK_SIZE < mLength; chunk++) {
+                int from = chunk * CHUNK_SIZE;
+                int to = Math.min(from + CHUNK_SIZE, mLength);
+                if (!chunkEquals(snapshot.data, mBase, from, to)) {
+                    buffer.putInt(chunk);
+                    for (int i = from; i < to; i++) {
+                        buffer.putDouble(snapshot.data[i]);
+                    }
+                    changed++;
+                }
+            }
+            buffer.putInt(countPosition, changed);
+        }
+        buffer.flip();
+
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Cannot create checkpoint directory " + mDirectory);
+        }
+
+        File temp = new File(mDirectory, file.getName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        // Only a snapshot that is in place can be the base of later deltas
+        if (full && mBase != null) {
+            System.arraycopy(snapshot.data, 0, mBase, 0, mLength);
+            mBaseName = file.getName();
+            mBaseStepCount = snapshot.stepCount;
+            mBaseChecksum = checksum(mBase);
+        }
+    }
+
+    /**
+     * Get the index following the highest checkpoint index in a directory
+     */
+    private static long getNextIndex(File directory) {
+        long next = 0;
+        String[] names = directory.list();
+        if (names == null) {
+            return next;
+        }
+
+        for (String name : names) {
+            if (name.startsWith(PREFIX) && name.endsWith(EXTENSION)) {
+                try {
+                    long index = Long.parseLong(name.substring(PREFIX.length(), name.length() - EXTENSION.length()));
+                    next = Math.max(next, index + 1);
+                } catch (NumberFormatException e) {
+                    // Not a checkpoint of ours
+                }
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Checksum of a full snapshot, stored in the deltas referring to it
+     */
+    private static long checksum(double[] data) {
+        long checksum = 0xcbf29ce484222325L;
+        for (double value : data) {
+            checksum = (checksum ^ Double.doubleToRawLongBits(value)) * 0x100000001b3L;
+        }
+        return checksum;
+    }
+
+    private static boolean chunkEquals(double[] a, double[] b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (Double.doubleToRawLongBits(a[i]) != Double.doubleToRawLongBits(b[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Restore the training state stored in a checkpoint file. The trainer must train a network of the same
+     * topology with the same kind of optimizer as the trainer that was checkpointed.
+     * @param file checkpoint file (full or delta)
+     * @param trainer trainer to restore
+     * @throws IOException if the file cannot be read or does not match the trainer
+     */
+    public static void restore(File file, NetworkTrainer trainer) throws IOException {
+        double[][] states = trainer.getOptimizer().getState();
+        int length = trainer.getParameterCount();
+        for (double[] state : states) {
+            length += state.length;
+        }
+
+        double[] data = new double[length];
+        long stepCount = read(file, data);
+
+        double[] parameters = trainer.getParameters();
+        System.arraycopy(data, 0, parameters, 0, parameters.length);
+        int offset = parameters.length;
+        for (double[] state : states) {
+            System.arraycopy(data, offset, state, 0, state.length);
+            offset += state.length;
+        }
+        trainer.getOptimizer().setStepCount(stepCount);
+        trainer.scatterParameters();
+    }
+
+    /**
+     * Read a checkpoint file into data, following the reference to the full snapshot of a delta
+     * @return step count stored in the checkpoint
+     */
+    private static long read(File file, double[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException(file + " is not a checkpoint file");
+        }
+
+        byte type = buffer.get();
+        long stepCount = buffer.getLong();
+        int length = buffer.getInt();
+        if (length != data.length) {
+            throw new IOException("Checkpoint " + file + " holds " + length +
+                    " values, the trainer expects " + data.length);
+        }
+
+        if (type == TYPE_FULL) {
+            buffer.asDoubleBuffer().get(data);
+            return stepCount;
+        }
+
+        byte[] baseName = new byte[buffer.getInt()];
+        buffer.get(baseName);
+        long baseStepCount = buffer.getLong();
+        long baseChecksum = buffer.getLong();
+
+        // The base may have been replaced since the delta was written
+        File base = new File(file.getAbsoluteFile().getParentFile(), new String(baseName, StandardCharsets.UTF_8));
+        if (read(base, data) != baseStepCount || checksum(data) != baseChecksum) {
+            throw new IOException("Checkpoint " + file + " does not match its base " + base);
+        }
+
+        int changed = buffer.getInt();
+        for (int c = 0; c < changed; c++) {
+            int from = buffer.getInt() * CHUNK_SIZE;
+            int to = Math.min(from + CHUNK_SIZE, length);
+            for (int i = from; i < to; i++) {
+                data[i] = buffer.getDouble();
+            }
+        }
+        return stepCount;
+    }
+
+    /**
+     * Wait for all pending checkpoints to be written and stop the writer thread
+     * @throws IOException if a pending checkpoint could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            for (Snapshot snapshot : mSnapshots) {
+                snapshot.await();
+            }
+        } finally {
+            mWriter.shutdown();
+            try {
+                mWriter.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * One of the two snapshot buffers
+     */
+    private static class Snapshot
+    {
+        final double[] data;
+        final ByteBuffer buffer;
+        long stepCount;
+        Future<File> pending;
+
+        Snapshot(int length) {
+            data = new double[length];
+
+            // Header, base reference and chunk indices of a delta are bounded by 4 KiB + one int per chunk
+            int chunks = (length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            buffer = ByteBuffer.allocate(4096 + 4 * chunks + 8 * length);
+        }
+
+        /**
+         * Wait for the pending write of this buffer, if any
+         */
+        void await() throws IOException {
+            if (pending == null) {
+                return;
+            }
+
+            try {
+                pending.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a checkpoint", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Checkpoint could not be written", e.getCause());
+            } finally {
+                pending = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2017 Javier Lancha Vázquez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.jlantxa.neural;
+
+public class ValidationException extends Exception
+{
+    private static final long serialVersionUID = 1L;
+
+    private final String msg;
+
+    ValidationException(String msg) {
+        super(msg);
+        this.msg = msg;
+    }
+
+    @Override
+    public void printStackTrace() {
+        System.err.println("Validation exception:");
+        System.err.println(msg);
+    }
+}
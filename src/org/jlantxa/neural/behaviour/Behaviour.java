@@ -36,4 +36,40 @@ public interface Behaviour
      * @return derivative of the function at input value x
      */
     double derivative(double x);
+
+    /**
+     * Apply the function to a whole layer: outputs[n] = f(inputs[n]) for n in [offset, offset+size)
+     * @param inputs layer inputs
+     * @param outputs layer outputs, may be the same array as inputs
+     * @param offset first element of the layer
+     * @param size size of the layer
+     */
+    default void activate(double[] inputs, double[] outputs, int offset, int size) {
+        for (int n = offset; n < offset + size; n++) {
+            outputs[n] = activation(inputs[n]);
+        }
+    }
+
+    /**
+     * Propagate a gradient from the outputs to the inputs of a whole layer, in place
+     * @param inputs layer inputs
+     * @param outputs layer outputs
+     * @param gradients gradient with respect to the outputs, replaced by the gradient with respect to the inputs
+     * @param offset first element of the layer
+     * @param size size of the layer
+     */
+    default void backward(double[] inputs, double[] outputs, double[] gradients, int offset, int size) {
+        for (int n = offset; n < offset + size; n++) {
+            gradients[n] *= derivative(inputs[n]);
+        }
+    }
+
+    /**
+     * Check whether every output only depends on the corresponding input.
+     * Functions of the whole layer override activate() and backward() instead of the scalar methods.
+     * @return true for element-wise functions
+     */
+    default boolean isElementWise() {
+        return true;
+    }
 }
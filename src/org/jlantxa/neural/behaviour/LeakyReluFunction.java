@@ -0,0 +1,50 @@
+/*
+ * Copyright 2017 Javier Lancha Vázquez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.jlantxa.neural.behaviour;
+
+/**
+ * The leaky rectified linear function outputs its input when positive and the input scaled
+ * by a small slope otherwise, so the gradient never vanishes completely.
+ */
+public class LeakyReluFunction implements Behaviour
+{
+    public static final double DEFAULT_SLOPE = 0.01;
+
+    private final double slope;
+
+    public LeakyReluFunction(double slope) {
+        this.slope = slope;
+    }
+
+    public LeakyReluFunction() {
+        this(DEFAULT_SLOPE);
+    }
+
+    @Override
+    public double activation(double x) {
+        return x > 0.0 ? x : slope * x;
+    }
+
+    @Override
+    public double derivative(double x) {
+        return x > 0.0 ? 1.0 : slope;
+    }
+
+    public double getSlope() {
+        return slope;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 Javier Lancha Vázquez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.jlantxa.neural.behaviour;
+
+/**
+ * The softmax function turns the inputs of a whole layer into a probability distribution:
+ * output_n = exp(x_n) / sum_j exp(x_j).
+ * Since every output depends on the whole layer, it has no scalar form: activation() and derivative()
+ * throw, and layers with this behaviour are evaluated through activate() and backward().
+ */
+public class SoftmaxFunction implements Behaviour
+{
+    public SoftmaxFunction() {
+    }
+
+    @Override
+    public double activation(double x) {
+        throw new UnsupportedOperationException("Softmax depends on the whole layer, use activate()");
+    }
+
+    @Override
+    public double derivative(double x) {
+        throw new UnsupportedOperationException("Softmax depends on the whole layer, use backward()");
+    }
+
+    @Override
+    public void activate(double[] inputs, double[] outputs, int offset, int size) {
+        int end = offset + size;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int n = offset; n < end; n++) {
+            max = Math.max(max, inputs[n]);
+        }
+
+        // Subtracting the maximum avoids overflow and does not change the result
+        double sum = 0.0;
+        for (int n = offset; n < end; n++) {
+            outputs[n] = Math.exp(inputs[n] - max);
+            sum += outputs[n];
+        }
+
+        for (int n = offset; n < end; n++) {
+            outputs[n] /= sum;
+        }
+    }
+
+    /**
+     * dL/dx_n = y_n * (dL/dy_n - sum_j y_j * dL/dy_j)
+     */
+    @Override
+    public void backward(double[] inputs, double[] outputs, double[] gradients, int offset, int size) {
+        int end = offset + size;
+        double dot = 0.0;
+        for (int n = offset; n < end; n++) {
+            dot += outputs[n] * gradients[n];
+        }
+
+        for (int n = offset; n < end; n++) {
+            gradients[n] = outputs[n] * (gradients[n] - dot);
+        }
+    }
+
+    @Override
+    public boolean isElementWise() {
+        return false;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2017 Javier Lancha Vázquez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.jlantxa.neural.behaviour;
+
+/**
+ * The hyperbolic tangent compresses any input value from [-inf, inf] to [-1, 1].
+ */
+public class TanhFunction implements Behaviour
+{
+    public TanhFunction() {
+    }
+
+    @Override
+    public double activation(double x) {
+        return Math.tanh(x);
+    }
+
+    @Override
+    public double derivative(double x) {
+        double t = Math.tanh(x);
+        return 1 - t * t;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 Javier Lancha Vázquez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.jlantxa.neural.optimizer;
+
+/**
+ * Common configuration of the optimizers: learning rate, weight decay and gradient clipping.
+ * Gradient clipping limits every gradient component to [-clip, clip]; a clip value of 0 disables it.
+ */
+public abstract class AbstractOptimizer implements Optimizer
+{
+    protected final double learningRate;
+    protected double weightDecay = 0.0;
+    protected double clip = 0.0;
+    protected long stepCount = 0;
+
+    protected AbstractOptimizer(double learningRate) {
+        this.learningRate = learningRate;
+    }
+
+    /**
+     * Set the weight decay coefficient
+     * @param weightDecay weight decay coefficient, 0 to disable
+     * @return this optimizer
+     */
+    public AbstractOptimizer setWeightDecay(double weightDecay) {
+        this.weightDecay = weightDecay;
+        return this;
+    }
+
+    /**
+     * Set the gradient clipping value
+     * @param clip maximum absolute value of every gradient component, 0 to disable
+     * @return this optimizer
+     */
+    public AbstractOptimizer setGradientClipping(double clip) {
+        this.clip = clip;
+        return this;
+    }
+
+    /**
+     * Clip a gradient component
+     * @param g gradient component
+     * @return clipped gradient component
+     */
+    protected final double clip(double g) {
+        if (clip > 0.0) {
+            return Math.max(-clip, Math.min(clip, g));
+        }
+        return g;
+    }
+
+    @Override
+    public long getStepCount() {
+        return stepCount;
+    }
+
+    @Override
+    public void setStepCount(long stepCount) {
+        this.stepCount = stepCount;
+    }
+}
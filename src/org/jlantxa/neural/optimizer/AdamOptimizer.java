@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 Javier Lancha Vázquez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.jlantxa.neural.optimizer;
+
+/**
+ * Adam, with bias-corrected first and second moment estimates.
+ * Weight decay is decoupled from the gradient (as in AdamW): p := p - lr * (m^ / (sqrt(v^) + eps) + wd * p)
+ */
+public class AdamOptimizer extends AbstractOptimizer
+{
+    private final double beta1;
+    private final double beta2;
+    private final double epsilon;
+    private double[] firstMoment;
+    private double[] secondMoment;
+
+    public AdamOptimizer(double learningRate, double beta1, double beta2, double epsilon) {
+        super(learningRate);
+        this.beta1 = beta1;
+        this.beta2 = beta2;
+        this.epsilon = epsilon;
+    }
+
+    public AdamOptimizer(double learningRate) {
+        this(learningRate, 0.9, 0.999, 1e-8);
+    }
+
+    @Override
+    public void init(int length) {
+        firstMoment = new double[length];
+        secondMoment = new double[length];
+    }
+
+    @Override
+    public void step(double[] parameters, double[] gradients) {
+        stepCount++;
+        final double b1 = beta1;
+        final double b2 = beta2;
+        final double eps = epsilon;
+        final double wd = weightDecay;
+        final double correction1 = 1.0 / (1.0 - Math.pow(b1, stepCount));
+        final double correction2 = 1.0 / (1.0 - Math.pow(b2, stepCount));
+        final double lr = learningRate;
+        final double[] m = firstMoment;
+        final double[] v = secondMoment;
+
+        for (int i = 0; i < parameters.length; i++) {
+            double g = clip(gradients[i]);
+            double mi = b1 * m[i] + (1.0 - b1) * g;
+            double vi = b2 * v[i] + (1.0 - b2) * g * g;
+            m[i] = mi;
+            v[i] = vi;
+
+            double p = parameters[i];
+            parameters[i] = p - lr * (mi * correction1 / (Math.sqrt(vi * correction2) + eps) + wd * p);
+        }
+    }
+
+    @Override
+    public double[][] getState() {
+        return new double[][] {firstMoment, secondMoment};
+    }
+}
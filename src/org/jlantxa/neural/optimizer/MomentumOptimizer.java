@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 Javier Lancha Vázquez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.jlantxa.neural.optimizer;
+
+/**
+ * Gradient descent with momentum: v := mu * v + g + wd * p, p := p - lr * v
+ */
+public class MomentumOptimizer extends AbstractOptimizer
+{
+    private final double momentum;
+    private double[] velocity;
+
+    public MomentumOptimizer(double learningRate, double momentum) {
+        super(learningRate);
+        this.momentum = momentum;
+    }
+
+    public MomentumOptimizer(double learningRate) {
+        this(learningRate, 0.9);
+    }
+
+    @Override
+    public void init(int length) {
+        velocity = new double[length];
+    }
+
+    @Override
+    public void step(double[] parameters, double[] gradients) {
+        final double lr = learningRate;
+        final double wd = weightDecay;
+        final double mu = momentum;
+        final double[] v = velocity;
+        for (int i = 0; i < parameters.length; i++) {
+            double p = parameters[i];
+            double vi = mu * v[i] + clip(gradients[i]) + wd * p;
+            v[i] = vi;
+            parameters[i] = p - lr * vi;
+        }
+        stepCount++;
+    }
+
+    @Override
+    public double[][] getState() {
+        return new double[][] {velocity};
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017 Javier Lancha Vázquez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.jlantxa.neural.optimizer;
+
+/**
+ * The Optimizer interface models the update rule applied to the parameters of a network during training.
+ * Parameters, gradients and any optimizer state are contiguous flat arrays of the same length,
+ * so every update is a single pass over memory.
+ */
+public interface Optimizer
+{
+    /**
+     * Allocate the optimizer state for a given number of parameters.
+     * Must be called once before the first step.
+     * @param length number of parameters
+     */
+    void init(int length);
+
+    /**
+     * Update the parameters in place
+     * @param parameters flat parameter vector
+     * @param gradients flat gradient vector, same length as parameters
+     */
+    void step(double[] parameters, double[] gradients);
+
+    /**
+     * Get the optimizer state vectors (e.g. moment estimates). The arrays are the live state of the
+     * optimizer, not copies.
+     * @return state vectors, each of the same length as the parameters. Empty if the optimizer is stateless.
+     */
+    double[][] getState();
+
+    /**
+     * Get the number of steps performed so far
+     * @return number of steps
+     */
+    long getStepCount();
+
+    /**
+     * Set the number of steps performed so far, e.g. when resuming a training from a checkpoint
+     * @param stepCount number of steps
+     */
+    void setStepCount(long stepCount);
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2017 Javier Lancha Vázquez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.jlantxa.neural.optimizer;
+
+/**
+ * Plain stochastic gradient descent: p := p - lr * (g + wd * p)
+ */
+public class SgdOptimizer extends AbstractOptimizer
+{
+    private static final double[][] NO_STATE = new double[0][];
+
+    public SgdOptimizer(double learningRate) {
+        super(learningRate);
+    }
+
+    @Override
+    public void init(int length) {
+    }
+
+    @Override
+    public void step(double[] parameters, double[] gradients) {
+        final double lr = learningRate;
+        final double wd = weightDecay;
+        for (int i = 0; i < parameters.length; i++) {
+            double p = parameters[i];
+            parameters[i] = p - lr * (clip(gradients[i]) + wd * p);
+        }
+        stepCount++;
+    }
+
+    @Override
+    public double[][] getState() {
+        return NO_STATE;
+    }
+}